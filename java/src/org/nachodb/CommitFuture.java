@@ -0,0 +1,27 @@
+package org.nachodb;
+
+/**
+ * Result of asynchronous commit (see {@link Storage#commitAsync()}).
+ * Allows to check or wait until changes of the transaction are durable.
+ */
+public interface CommitFuture { 
+    /**
+     * Check if commit is completed
+     * @return <code>true</code> if commit is completed (successfully or not)
+     */
+    public boolean isDone();
+
+    /**
+     * Wait until commit is completed
+     * @exception StorageError if commit is failed
+     */
+    public void waitFor();
+
+    /**
+     * Wait until commit is completed or timeout is expired
+     * @param timeout maximal wait time in milliseconds
+     * @return <code>true</code> if commit is completed, <code>false</code> if timeout is expired
+     * @exception StorageError if commit is failed
+     */
+    public boolean waitFor(long timeout);
+}
@@ -4,7 +4,9 @@ package org.nachodb;
  * Interface of file.
  * Programmer can provide its own impleentation of this interface, adding such features
  * as support of flash cards, encrypted files,...
- * Implentation of this interface should throw StorageError exception in case of failure
+ * Implentation of this interface should throw StorageError exception in case of failure.
+ * Page pool reads pages outside of its monitor, so <code>read</code> and <code>write</code> methods
+ * can be invoked concurrently by different threads and implementation should be thread safe.
  */
 public interface IFile { 
     /**
@@ -0,0 +1,17 @@
+package org.nachodb;
+
+/**
+ * Interface of file supporting gathering write operation.
+ * If file used by the storage implements this interface, then page pool merges
+ * adjacent dirty pages during transaction commit and writes them to the file
+ * by one operation instead of writing them page by page.
+ */
+public interface IGatheringFile extends IFile {
+    /**
+     * Write several adjacent pages to the file
+     * @param pos offset in the file of the first page
+     * @param bufs array of pages to be written (size of each page is equal to database page size)
+     * @param nBufs number of pages to be written (pages are taken from the beginning of <code>bufs</code> array)
+     */
+    void write(long pos, byte[][] bufs, int nBufs);
+}
@@ -0,0 +1,40 @@
+package org.nachodb;
+
+/**
+ * Interface of persistent capable objects which fields are unpacked on demand.
+ * When such object is loaded, storage unpacks only fields of scalar, string, date and reference types.
+ * Fields of array, link, value and raw types declared in classes implementing this interface
+ * are set to <code>null</code> and unpacked from the record 
+ * of the object, which is kept in memory, when <code>loadField</code> is invoked for them. 
+ * So loading of wide objects from which only few fields are accessed is much cheaper.<P>
+ * Application should invoke <code>loadField</code> before accessing such field 
+ * (it is done automatically by JAssist translator and AspectJ aspect).
+ * Fields which were not unpacked are unpacked by the storage before the object is stored,
+ * unless application assigned non-null value to them.
+ */
+public interface ILazyPersistent extends IPersistent {
+    /**
+     * Load object (if needed) and unpack its field if it was not unpacked yet
+     * @param name name of the field
+     */
+    public void loadField(String name);
+
+    /**
+     * Load object (if needed) and unpack all its fields which were not unpacked yet
+     */
+    public void loadFields();
+
+    /**
+     * Get record of the object and positions of the fields which were not unpacked yet.
+     * This method is used by storage implementation.
+     * @return opaque object created by the storage or <code>null</code> if all fields are unpacked
+     */
+    public Object getPendingFields();
+
+    /**
+     * Set record of the object and positions of the fields which were not unpacked yet.
+     * This method is used by storage implementation.
+     * @param fields opaque object created by the storage or <code>null</code> if all fields are unpacked
+     */
+    public void setPendingFields(Object fields);
+}
@@ -0,0 +1,45 @@
+package org.nachodb;
+
+/**
+ * Interface of storage level lock manager tracking locks of <code>PersistentResource</code> objects.
+ * Lock manager is used by storage if "perst.lock.manager" property is set.
+ */
+public interface ILockManager {
+    /**
+     * Register lock granted to the current thread
+     * @param resource locked resource
+     * @param waitStart time when thread started waiting for the lock or 0 if lock was granted immediately
+     */
+    public void lockGranted(IResource resource, long waitStart);
+
+    /**
+     * Register that current thread is going to wait for the lock and check for deadlock.
+     * @param resource resource which lock is requested
+     * @param waitStart time when thread started waiting for the lock or 0 if it is first attempt
+     * @return time when thread started waiting for the lock
+     * @exception StorageError(StorageError.DEADLOCK) if waiting for the lock will cause deadlock
+     */
+    public long beginWait(IResource resource, long waitStart);
+
+    /**
+     * Register that current thread has not got the lock within specified timeout
+     * @param resource resource which lock was requested
+     * @param waitStart time when thread started waiting for the lock
+     */
+    public void lockTimeout(IResource resource, long waitStart);
+
+    /**
+     * Register that current thread has stopped waiting for the lock without getting it
+     */
+    public void cancelWait();
+
+    /**
+     * Register release of the lock by the current thread
+     */
+    public void unlocked(IResource resource);
+
+    /**
+     * Register release of all locks of the resource
+     */
+    public void reset(IResource resource);
+}
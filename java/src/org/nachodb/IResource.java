@@ -19,6 +19,7 @@ public interface IResource {
     * Only persistent object (object which were assigned to the the storage either implicitly by
     * saving some other persistent object referencing this object, either explicitly by 
     * <code>Storage.makeObjectPersistent</code> method.<BR>
+    * @exception StorageError(StorageError.DEADLOCK) if storage lock manager is used and waiting for the lock would cause deadlock
     */
     public void    sharedLock();
   
@@ -45,6 +46,7 @@ public interface IResource {
     * <DT><code>true</code> if lock is successfully granted<br>
     * <DT><code>false</code> if lock can not be granted within specified time 
     * </DL>
+    * @exception StorageError(StorageError.DEADLOCK) if storage lock manager is used and waiting for the lock would cause deadlock
     */
     public boolean sharedLock(long timeout);
 
@@ -61,6 +63,7 @@ public interface IResource {
     * Only persistent object (object which were assigned to the the storage either implicitly by
     * saving some other persistent object referencing this object, either explicitly by 
     * <code>Storage.makeObjectPersistent</code> method.   
+    * @exception StorageError(StorageError.DEADLOCK) if storage lock manager is used and waiting for the lock would cause deadlock
     */
     public void    exclusiveLock();
 
@@ -85,6 +88,7 @@ public interface IResource {
     * <DT><code>true</code> if lock is successfully granted<br>
     * <DT><code>false</code> if lock can not be granted within specified time 
     * </DL>
+    * @exception StorageError(StorageError.DEADLOCK) if storage lock manager is used and waiting for the lock would cause deadlock
     */
     public boolean exclusiveLock(long timeout);
 
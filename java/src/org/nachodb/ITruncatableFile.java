@@ -0,0 +1,14 @@
+package org.nachodb;
+
+/**
+ * Interface of file which size can be decreased.
+ * If file used by the storage implements this interface, then free space at the end of the file
+ * released by compaction (see <code>Storage.compact</code>) is returned to the file system.
+ */
+public interface ITruncatableFile extends IFile {
+    /**
+     * Truncate the file
+     * @param size new size of the file. If the file is not larger than specified size, it is not changed.
+     */
+    void truncate(long size);
+}
@@ -0,0 +1,37 @@
+package org.nachodb;
+
+/**
+ * Base class for persistent capable objects which fields are unpacked on demand
+ * @see ILazyPersistent
+ */
+public class LazyPersistent extends Persistent implements ILazyPersistent { 
+    public void loadField(String name) { 
+        load();
+        if (pendingFields != null) { 
+            storage.loadField(this, name);
+        }
+    }
+
+    public void loadFields() { 
+        load();
+        if (pendingFields != null) { 
+            storage.loadField(this, null);
+        }
+    }
+
+    public final Object getPendingFields() { 
+        return pendingFields;
+    }
+
+    public final void setPendingFields(Object fields) { 
+        pendingFields = fields;
+    }
+
+    public LazyPersistent() {}
+
+    public LazyPersistent(Storage storage) { 
+        super(storage);
+    }
+
+    private transient Object pendingFields;
+}
@@ -0,0 +1,49 @@
+package org.nachodb;
+
+/**
+ * Lock statistic for the correspondent class of resources.
+ * Instances of this class are created by Storage.getLockStatistics method.
+ */
+public class LockStatistics {
+    /**
+     * Class of locked resources
+     */
+    public Class cls;
+
+    /**
+     * Number of granted locks
+     */
+    public long nLocks;
+
+    /**
+     * Number of granted locks for which thread has to wait because resource was locked by other thread
+     */
+    public long nContentions;
+
+    /**
+     * Number of lock requests which were not granted within specified timeout
+     */
+    public long nTimeouts;
+
+    /**
+     * Number of lock requests rejected because of deadlock
+     */
+    public long nDeadlocks;
+
+    /**
+     * Total time (in milliseconds) spent by threads waiting for locks
+     */
+    public long totalWaitTime;
+
+    /**
+     * Maximal time (in milliseconds) spent by thread waiting for the lock
+     */
+    public long maxWaitTime;
+
+    /**
+     * LockStatistics constructor
+     */
+    public LockStatistics(Class cls) { 
+        this.cls = cls;
+    }
+}
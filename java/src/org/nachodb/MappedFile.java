@@ -0,0 +1,213 @@
+package org.nachodb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import org.nachodb.impl.OSFile;
+
+/**
+ * Class using NIO mapping file on virtual memory.
+ * Using this class instead standard OSFile can significantly increase
+ * speed of application in some cases, because page pool miss is handled by copying
+ * data from mapped memory instead of performing seek and read system calls.
+ * File is mapped by segments of <code>SEGMENT_SIZE</code> bytes, so databases larger
+ * than 2Gb can be used. Last segment is extended by doubling its size when
+ * database grows, so small databases are not enlarged to the segment boundary.
+ * Read operations are not changing state of the shared buffers, so they can be
+ * executed concurrently by several threads.
+ */
+public class MappedFile implements IFile {
+    /**
+     * Size of mapped segment. It should be multiple of database page size.
+     */
+    public static final long SEGMENT_SIZE = 64*1024*1024;
+
+    /**
+     * Minimal size of the mapped segment
+     */
+    static final long MIN_SEGMENT_SIZE = 64*1024;
+
+    /**
+     * Mapped segments and total size of mapped area.
+     * Readers are not synchronized with extension of the file, so segments and size 
+     * are replaced together by publishing new instance of this class.
+     */
+    static final class Mapping { 
+        final MappedByteBuffer[] segments;
+        final long               size;
+
+        Mapping(MappedByteBuffer[] segments, long size) { 
+            this.segments = segments;
+            this.size = size;
+        }
+    }
+
+    private final synchronized void checkSize(long size) throws IOException {
+        Mapping m = mapping;
+        if (size > m.size) { 
+            MappedByteBuffer[] segments = m.segments;
+            int nSegments = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            int last = segments.length - 1;
+            if (nSegments > segments.length) { 
+                MappedByteBuffer[] newSegments = new MappedByteBuffer[nSegments];
+                System.arraycopy(segments, 0, newSegments, 0, segments.length);
+                for (int i = segments.length; i < nSegments; i++) { 
+                    newSegments[i] = chan.map(FileChannel.MapMode.READ_WRITE, i*SEGMENT_SIZE, SEGMENT_SIZE);
+                }
+                if (last >= 0 && newSegments[last].capacity() < SEGMENT_SIZE) { 
+                    newSegments[last] = chan.map(FileChannel.MapMode.READ_WRITE, last*SEGMENT_SIZE, SEGMENT_SIZE);
+                }
+                mapping = new Mapping(newSegments, nSegments*SEGMENT_SIZE);
+            } else { 
+                long lastSize = m.size - last*SEGMENT_SIZE;
+                long newSize = lastSize*2;
+                if (newSize > SEGMENT_SIZE) { 
+                    newSize = SEGMENT_SIZE;
+                }
+                if (newSize < size - last*SEGMENT_SIZE) { 
+                    newSize = size - last*SEGMENT_SIZE;
+                }
+                MappedByteBuffer[] newSegments = (MappedByteBuffer[])segments.clone();
+                newSegments[last] = chan.map(FileChannel.MapMode.READ_WRITE, last*SEGMENT_SIZE, newSize);
+                mapping = new Mapping(newSegments, last*SEGMENT_SIZE + newSize);
+            }
+        }
+    }
+
+    public void write(long pos, byte[] buf)
+    {
+        try { 
+            checkSize(pos + buf.length);
+            MappedByteBuffer[] segs = mapping.segments;
+            int off = 0;
+            int len = buf.length;
+            while (len > 0) { 
+                int segOffs = (int)(pos % SEGMENT_SIZE);
+                ByteBuffer map = segs[(int)(pos / SEGMENT_SIZE)].duplicate();
+                int toWrite = len;
+                if (toWrite > map.capacity() - segOffs) { 
+                    toWrite = map.capacity() - segOffs;
+                }
+                map.position(segOffs);
+                map.put(buf, off, toWrite);
+                off += toWrite;
+                len -= toWrite;
+                pos += toWrite;
+            }
+        } catch (IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
+    public int read(long pos, byte[] buf)
+    {
+        Mapping m = mapping;
+        MappedByteBuffer[] segs = m.segments;
+        long size = m.size;
+        if (pos >= size) { 
+            return 0;
+        }
+        int len = buf.length;
+        if (pos + len > size) { 
+            len = (int)(size - pos);
+        }
+        int off = 0;
+        while (off < len) { 
+            int segOffs = (int)(pos % SEGMENT_SIZE);
+            ByteBuffer map = segs[(int)(pos / SEGMENT_SIZE)].duplicate();
+            int toRead = len - off;
+            if (toRead > map.capacity() - segOffs) { 
+                toRead = map.capacity() - segOffs;
+            }
+            map.position(segOffs);
+            map.get(buf, off, toRead);
+            off += toRead;
+            pos += toRead;
+        }
+        return len;
+    }
+
+    public void sync()
+    {
+        if (!noFlush) { 
+            MappedByteBuffer[] segs = mapping.segments;
+            for (int i = 0; i < segs.length; i++) { 
+                segs[i].force();
+            }
+        }
+    }
+
+    public void close()
+    {
+        try { 
+            chan.close();
+            f.close();
+        } catch(IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
+    public boolean lock()
+    {
+        return OSFile.lockFile(f);
+    }
+
+    public long length() {
+        try { 
+            return f.length();
+        } catch(IOException x) { 
+            return -1;
+        }
+    }
+
+    /**
+     * Constructor of mapped file
+     * @param filePath path to the file
+     * @param initialSize initial size of mapped area (ignored in read-only mode)
+     * @param readOnly whether file should be opened in read-only mode
+     */
+    public MappedFile(String filePath, long initialSize, boolean readOnly) {
+        this(filePath, initialSize, readOnly, false);
+    }
+
+    /**
+     * Constructor of mapped file
+     * @param filePath path to the file
+     * @param initialSize initial size of mapped area (ignored in read-only mode)
+     * @param readOnly whether file should be opened in read-only mode
+     * @param noFlush whether synchronization of mapped memory with the disk should be skipped
+     */
+    public MappedFile(String filePath, long initialSize, boolean readOnly, boolean noFlush) {
+        this.noFlush = noFlush;
+        try { 
+            f = new RandomAccessFile(filePath, readOnly ? "r" : "rw");
+            chan = f.getChannel();
+            long size = chan.size();
+            if (!readOnly) { 
+                if (size < initialSize) { 
+                    size = initialSize;
+                }
+                if (size < MIN_SEGMENT_SIZE) { 
+                    size = MIN_SEGMENT_SIZE;
+                }
+            }
+            int nSegments = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+            for (int i = 0; i < nSegments; i++) { 
+                long segSize = size - i*SEGMENT_SIZE < SEGMENT_SIZE ? size - i*SEGMENT_SIZE : SEGMENT_SIZE;
+                segments[i] = chan.map(readOnly
+                                       ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                                       i*SEGMENT_SIZE, // position
+                                       segSize);
+            }
+            mapping = new Mapping(segments, size);
+        } catch(IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
+    RandomAccessFile            f;
+    FileChannel                 chan;
+    volatile Mapping            mapping;
+    boolean                     noFlush;
+}
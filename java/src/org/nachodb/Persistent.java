@@ -55,6 +55,9 @@ public class Persistent implements IPersistent {
             Assert.that((state & DELETED) == 0);
             storage.modifyObject(this);
             state |= DIRTY;
+        } else if (oid != 0) { 
+            // object can be already modified by other optimistic transaction
+            storage.modifyObject(this);
         }
     }
 
@@ -7,6 +7,8 @@ package org.nachodb;
 public class PersistentResource extends Persistent implements IResource {
     public synchronized void sharedLock() {
         Thread currThread = Thread.currentThread();
+        ILockManager lockManager = getLockManager();
+        long waitStart = 0;
         try { 
             while (true) { 
                 if (owner == currThread) { 
@@ -19,45 +21,71 @@ public class PersistentResource extends Persistent implements IResource {
                     nReaders += 1;
                     break;
                 } else { 
+                    if (lockManager != null) { 
+                        waitStart = lockManager.beginWait(this, waitStart);
+                    }
                     wait();
                 }
             }
         } catch (InterruptedException x) { 
+            if (lockManager != null) { 
+                lockManager.cancelWait();
+            }
             throw new StorageError(StorageError.LOCK_FAILED);
         }
+        if (lockManager != null) { 
+            lockManager.lockGranted(this, waitStart);
+        }
     }
                     
     public boolean sharedLock(long timeout) {
         Thread currThread = Thread.currentThread();
+        ILockManager lockManager = getLockManager();
         long startTime = System.currentTimeMillis();
+        long waitStart = 0;
         synchronized (this) { 
             try { 
                 while (true) { 
                     if (owner == currThread) { 
                         nWriters += 1;
-                        return true;
+                        break;
                     } else if (nWriters == 0) { 
                         if (nReaders == 0 && storage != null) { 
                             storage.lockObject(this);
                         }
                         nReaders += 1;
-                        return true;
+                        break;
                     } else { 
                         long currTime = System.currentTimeMillis();
                         if (startTime + timeout <= currTime) { 
+                            if (lockManager != null) { 
+                                lockManager.lockTimeout(this, waitStart != 0 ? waitStart : startTime);
+                            }
                             return false;
                         }
+                        if (lockManager != null) { 
+                            waitStart = lockManager.beginWait(this, waitStart);
+                        }
                         wait(startTime + timeout - currTime);
                     }
                 }
             } catch (InterruptedException x) { 
+                if (lockManager != null) { 
+                    lockManager.cancelWait();
+                }
                 return false;
             }
+            if (lockManager != null) { 
+                lockManager.lockGranted(this, waitStart);
+            }
+            return true;
         }
     }
                     
     public synchronized void exclusiveLock() {
         Thread currThread = Thread.currentThread();
+        ILockManager lockManager = getLockManager();
+        long waitStart = 0;
         try { 
             while (true) { 
                 if (owner == currThread) { 
@@ -71,45 +99,73 @@ public class PersistentResource extends Persistent implements IResource {
                     }
                     break;
                 } else { 
+                    if (lockManager != null) { 
+                        waitStart = lockManager.beginWait(this, waitStart);
+                    }
                     wait();
                 }
             }
         } catch (InterruptedException x) { 
+            if (lockManager != null) { 
+                lockManager.cancelWait();
+            }
             throw new StorageError(StorageError.LOCK_FAILED);
         }
+        if (lockManager != null) { 
+            lockManager.lockGranted(this, waitStart);
+        }
     }
                     
     public boolean exclusiveLock(long timeout) {
         Thread currThread = Thread.currentThread();
+        ILockManager lockManager = getLockManager();
         long startTime = System.currentTimeMillis();
+        long waitStart = 0;
         synchronized (this) { 
             try { 
                 while (true) { 
                     if (owner == currThread) { 
                         nWriters += 1;
-                        return true;
+                        break;
                     } else if (nReaders == 0 && nWriters == 0) { 
                         nWriters = 1;
                         owner = currThread;
                         if (storage != null) { 
                             storage.lockObject(this);
                         }
-                        return true;
+                        break;
                     } else { 
                         long currTime = System.currentTimeMillis();
                         if (startTime + timeout <= currTime) { 
+                            if (lockManager != null) { 
+                                lockManager.lockTimeout(this, waitStart != 0 ? waitStart : startTime);
+                            }
                             return false;
                         }
+                        if (lockManager != null) { 
+                            waitStart = lockManager.beginWait(this, waitStart);
+                        }
                         wait(startTime + timeout - currTime);
                     }
                 }
             } catch (InterruptedException x) { 
+                if (lockManager != null) { 
+                    lockManager.cancelWait();
+                }
                 return false;
             }
+            if (lockManager != null) { 
+                lockManager.lockGranted(this, waitStart);
+            }
+            return true;
         }
     }
                    
     public synchronized void unlock() { 
+        ILockManager lockManager = getLockManager();
+        if (lockManager != null) { 
+            lockManager.unlocked(this);
+        }
         if (nWriters != 0) { 
             if (--nWriters == 0) { 
                 owner = null;
@@ -123,12 +179,20 @@ public class PersistentResource extends Persistent implements IResource {
     }
 
     public synchronized void reset() { 
+        ILockManager lockManager = getLockManager();
+        if (lockManager != null) { 
+            lockManager.reset(this);
+        }
         nReaders = 0;
         nWriters = 0;
         owner = null;
         notifyAll();
     }
 
+    private ILockManager getLockManager() {
+        return storage != null ? storage.getLockManager() : null;
+    }
+
     public PersistentResource() {}
     
     public PersistentResource(Storage storage) { 
@@ -91,11 +91,46 @@ public interface Storage {
      */
     public void commit();
 
+    /**
+     * Commit changes done by the last transaction asynchronously. Modified objects are stored and 
+     * dirty pages are written to the file by the calling thread, but syncing the file and writing
+     * of the new database header is performed by separate thread, so this method does not wait 
+     * until the changes are durable. Changes done after invocation of this method belong to the next
+     * transaction. Pages of the next transaction are not written to the file until this commit 
+     * is completed.<P>
+     * If asynchronous commit fails (its future reports the error), state of the database produced by 
+     * this and all subsequent transactions is not durable: storage is marked as failed, any following 
+     * <code>commit</code> or <code>commitAsync</code> as well as any attempt to write page to the file
+     * causes <code>StorageError.FILE_ACCESS_ERROR</code> error. Such storage should be closed 
+     * (<code>close</code> doesn't commit current transaction in this case) and reopened: the database
+     * is recovered to the state of the last successfully completed commit.
+     * @return future object which can be used to check or wait until changes are durable
+     * @exception StorageError(FILE_ACCESS_ERROR) if previous asynchronous commit has failed
+     */
+    public CommitFuture commitAsync();
+
     /**
      * Rollback changes made by the last transaction
      */
     public void rollback();
 
+    /**
+     * Create read-only snapshot of the last committed state of the database.
+     * Snapshot is accessed through the returned storage object: it has its own object cache, resolves
+     * object identifiers using the committed object index and is not synchronized with this storage,
+     * so readers of the snapshot are not blocked by the writer and see consistent state of the database
+     * regardless of commits performed after snapshot creation. Any attempt to modify objects 
+     * of the snapshot causes <code>StorageError.READ_ONLY_SNAPSHOT</code> error.
+     * <code>exportXML</code> exports the state of the database visible through the snapshot and 
+     * <code>getDatabaseSize</code> returns size of the database file at the moment of snapshot creation,
+     * while <code>backup</code>, <code>getMemoryDump</code> and <code>getUsedSize</code> are not supported by snapshot
+     * and cause <code>StorageError.NOT_SUPPORTED_BY_SNAPSHOT</code> error.<P>
+     * Space used by old versions of objects is not reused while there are snapshots referring to them,
+     * so snapshot should be closed by its <code>close</code> method as soon as it is not needed.
+     * @return read-only storage representing committed state of this storage
+     */
+    public Storage createSnapshot();
+
 
     /**
      * Backup current state of database
@@ -129,6 +164,20 @@ public interface Storage {
      */
     public static final int REPLICATION_SLAVE_TRANSACTION = 3;
 
+    /**
+     * Optimistic per-thread transaction. Threads work concurrently without locking objects.
+     * Storage records version of each object fetched, loaded or modified by the thread within transaction 
+     * and when transaction is ended, checks that none of these objects was changed by transactions committed 
+     * since then. If such conflict is detected, changes done by the transaction are discarded and
+     * <code>StorageError.TRANSACTION_CONFLICT</code> error is thrown, so that transaction can be restarted.
+     * Since object instances are shared by all threads, access to the object modified by other active
+     * optimistic transaction is also reported as conflict, and object should be marked as modified 
+     * (using <code>modify()</code> or <code>loadAndModify()</code>) before it is updated.
+     * Like in case of serializable transaction, modified objects are stored only at the end of transaction,
+     * so the same restrictions on use of <code>IPersistent.store()</code> are applied.
+     */
+    public static final int OPTIMISTIC_TRANSACTION = 4;
+
     /** 
      * Begin per-thread transaction. Three types of per-thread transactions are supported: 
      * exclusive, cooperative and serializable. In case of exclusive transaction, only one 
@@ -150,7 +199,7 @@ public interface Storage {
      * You should use <code>SortedCollection</code> based on T-Tree instead or alternative
      * B-Tree implemenataion (set "perst.alternative.btree" property).
      * @param mode <code>EXCLUSIVE_TRANSACTION</code>, <code>COOPERATIVE_TRANSACTION</code>, 
-     * <code>SERIALIZABLE_TRANSACTION</code> or <code>REPLICATION_SLAVE_TRANSACTION</code>
+     * <code>SERIALIZABLE_TRANSACTION</code>, <code>OPTIMISTIC_TRANSACTION</code> or <code>REPLICATION_SLAVE_TRANSACTION</code>
      */
     public void beginThreadTransaction(int mode);
     
@@ -160,6 +209,8 @@ public interface Storage {
      * allows other thread to proceed.<br>
      * If transaction is <i>serializable</i>, this method commits sll changes done by this thread
      * and release all locks set by this thread.<br>     
+     * If transaction is <i>optimistic</i>, this method validates versions of objects accessed by this thread and
+     * either commits changes done by this thread or throws <code>StorageError.TRANSACTION_CONFLICT</code> error.<br>
      * If transaction is <i>cooperative</i>, this method decrement counter of cooperative
      * transactions and if it becomes zero - commit the work
      */
@@ -381,6 +432,25 @@ public interface Storage {
      */
     public int gc();
 
+    /**
+     * Perform one step of online compaction of the database file.
+     * Objects located at the end of the file are moved to the holes closer to the beginning of the file
+     * and size of the database is decreased when its tail becomes free, so the file can be compacted 
+     * by small steps performed between transactions without closing the storage.
+     * Step commits the current transaction: space of the moved objects is released by this commit
+     * and the free tail of the file is truncated at the end of the pass. Object index and objects for which 
+     * there is no hole of appropriate size before the window are not moved. Space is returned to the file system 
+     * only if the file implements <code>ITruncatableFile</code> interface.<P>
+     * Pass of compaction chooses the window at the end of the used space and scans object index
+     * to locate objects in this window. Each step scans not more than "perst.compaction.scan.limit" 
+     * object identifiers and next step continues the scan from the place where the previous step has stopped,
+     * so one pass can take several steps.
+     * @param maxMovedSize limit for total size of objects moved by the pass, used when new pass is started
+     * @return <code>true</code> if the pass is completed and it has not decreased the end of used space, 
+     * so the file can not be compacted any more, <code>false</code> if more steps are needed
+     */
+    public boolean compact(long maxMovedSize);
+
     /**
      * Export database in XML format 
      * @param writer writer for generated XML document
@@ -403,6 +473,22 @@ public interface Storage {
      */
     public IPersistent getObjectByOID(int oid);
 
+    /**
+     * Load objects in one pass. Positions of the objects are resolved and sorted by offset in the file,
+     * then pages containing the objects are read in this order by several threads and objects are unpacked.
+     * So traversal of large collection of objects doesn't cause random reads of pages in arbitrary order.
+     * Objects which are already loaded are skipped.
+     * @param objects stubs of objects to be loaded (elements can be <code>null</code>)
+     */
+    public void prefetch(IPersistent[] objects);
+
+    /**
+     * Load members of the link in one pass
+     * @param link link which members should be loaded
+     * @see #prefetch(IPersistent[])
+     */
+    public void prefetch(Link link);
+
     /**
      * Explicitely make object persistent. Usually objects are made persistent
      * implicitlely using "persistency on reachability apporach", but this
@@ -486,6 +572,67 @@ public interface Storage {
      * the problem, because all data which were written to the file, but is not yet saved to the disk is 
      * stored in OS file buffers and sooner or later them will be written to the disk)
      * </TD></TR>
+     * <TR><TD><code>perst.file.mmap</code></TD><TD>Boolean</TD><TD>false</TD>
+     * <TD>Access database file through memory mapping (see <code>MappedFile</code> class).
+     * Page pool miss is handled in this case by copying data from mapped memory instead
+     * of performing seek and read system calls, which can significantly increase speed
+     * of read-mostly applications. This property is used only by <code>open</code> methods
+     * accepting path to the database file.
+     * </TD></TR>
+     * <TR><TD><code>perst.file.positional.io</code></TD><TD>Boolean</TD><TD>false</TD>
+     * <TD>Use positional read and write operations of NIO file channel instead of 
+     * <code>seek</code> followed by <code>read</code> or <code>write</code>.
+     * In this mode page pool misses in different threads are served in parallel. 
+     * But file channel is closed if thread performing IO operation is interrupted.
+     * This property is used only by <code>open</code> methods accepting path to the database file.
+     * </TD></TR>
+     * <TR><TD><code>perst.page.size</code></TD><TD>Integer</TD><TD>4096</TD>
+     * <TD>Size of database page: 4096, 8192, 16384 or 32768 bytes. Larger pages provide higher 
+     * fanout of B-Tree pages and reduce number of I/O operations for large objects and long keys.
+     * Page size is stored in the database header when database is created and it is not possible
+     * to open database with other page size. Page size is shared by all storages opened by 
+     * the application, so it should be specified as Java system property (for example 
+     * <code>-Dperst.page.size=16384</code>). Invalid value of the system property is reported by 
+     * <code>open</code> with <code>StorageError.BAD_PROPERTY_VALUE</code>. Specifying this property for the storage
+     * just checks that it matches page size used by application.
+     * </TD></TR>
+     * <TR><TD><code>perst.file.wal</code></TD><TD>Boolean</TD><TD>false</TD>
+     * <TD>Use write-ahead log (see {@link WalFile}). Pages written by transaction are appended to the log
+     * file (database file path with ".wal" suffix) and commit flushes only this log, instead of flushing
+     * the database file twice. Pages are copied from the log to the database file and database file is flushed
+     * by checkpoint, which is performed when size of the log exceeds 64Mb and when database is closed. 
+     * Pages of transactions committed to the log are copied to the database file when database is opened.
+     * This property is used only by <code>open</code> methods accepting path to the database file.
+     * </TD></TR>
+     * <TR><TD><code>perst.page.pool.partitions</code></TD><TD>Integer</TD><TD>1</TD>
+     * <TD>Number of partitions of page pool. Pages are distributed between partitions by their
+     * numbers and each partition has its own lock, LRU list and free list, so threads accessing
+     * different pages are not blocked by each other. Total size of page pool is evenly divided
+     * between partitions. This property is ignored for infinite page pool.
+     * </TD></TR>
+     * <TR><TD><code>perst.page.pool.replacement</code></TD><TD>String</TD><TD>"lru"</TD>
+     * <TD>Policy used to select page evicted from the page pool. The following values are supported:
+     * "lru", "clock", "2q". <B>LRU</B> policy evicts least recently used page. 
+     * <B>Clock</B> policy is approximation of LRU which doesn't need to reorder list of pages on each 
+     * page access. <B>2Q</B> policy is scan resistant: pages accessed only once (for example by
+     * sequential scan of large index or by garbage collector) are evicted before frequently used pages.
+     * </TD></TR>
+     * <TR><TD><code>perst.page.pool.offheap.size</code></TD><TD>Long</TD><TD>0</TD>
+     * <TD>Size in bytes of second level page cache allocated outside Java heap (in direct byte buffers).
+     * Pages evicted from the page pool are kept in this cache, so page pool misses are served by copying
+     * page from this cache instead of reading it from the file. It makes it possible to cache large part
+     * of the database without increasing Java heap size and garbage collection time. 
+     * Value 0 disables off-heap cache. This property is ignored for infinite page pool.
+     * </TD></TR>
+     * <TR><TD><code>perst.page.pool.warmup.file</code></TD><TD>String</TD><TD>null</TD>
+     * <TD>Path to the file used to save set of pages loaded in the page pool when storage is closed.
+     * When storage is opened, these pages are loaded in the page pool in order of their offsets
+     * by several threads, so page pool is warm without long period of random reads after restart.
+     * </TD></TR>
+     * <TR><TD><code>perst.page.pool.warmup.background</code></TD><TD>Boolean</TD><TD>false</TD>
+     * <TD>Load pages saved in warm-up file in background, so <code>open</code> method doesn't wait 
+     * completion of loading.
+     * </TD></TR>
      * <TR><TD><code>perst.alternative.btree</code></TD><TD>Boolean</TD><TD>false</TD>
      * <TD>Use aternative implementation of B-Tree (not using direct access to database
      * file pages). This implementation should be used in case of serialized per thread transctions.
@@ -499,6 +646,50 @@ public interface Storage {
      * <TR><TD><code>perst.background.gc</code></TD><TD>Boolean</TD><TD>false</TD>
      * <TD>Perform garbage collection in separate thread without blocking the main application.
      * </TD></TR>
+     * <TR><TD><code>perst.background.writer.high.watermark</code></TD><TD>Integer</TD><TD>0</TD>
+     * <TD>Percent of dirty pages in the page pool at which background writer thread is activated.
+     * Background writer writes to the file dirty pages not used by application, so transaction commit 
+     * has to write only remaining dirty pages and sync the file. Value 0 disables background writer.
+     * </TD></TR>
+     * <TR><TD><code>perst.background.writer.low.watermark</code></TD><TD>Integer</TD><TD>high watermark/2</TD>
+     * <TD>Percent of dirty pages in the page pool at which background writer stops writing pages.
+     * </TD></TR>
+     * <TR><TD><code>perst.lock.manager</code></TD><TD>Boolean</TD><TD>false</TD>
+     * <TD>Track locks of <code>PersistentResource</code> objects by storage lock manager, which detects deadlocks
+     * (lock request which would cause deadlock fails with <code>StorageError.DEADLOCK</code> error) and collects
+     * lock statistic returned by <code>getLockStatistics</code> method.
+     * </TD></TR>
+     * <TR><TD><code>perst.gc.threads</code></TD><TD>Integer</TD><TD>1</TD>
+     * <TD>Number of threads traversing reachable objects in mark phase of garbage collection.
+     * </TD></TR>
+     * <TR><TD><code>perst.gc.max.pause</code></TD><TD>Long</TD><TD>0</TD>
+     * <TD>Maximal time (in milliseconds) of one step of incremental sweep performed by background garbage collector.
+     * Storage is locked only during the step, so transactions can be committed while garbage is deallocated.
+     * Zero value means that all garbage is deallocated at once. Used only if <code>perst.background.gc</code> is set.
+     * </TD></TR>
+     * <TR><TD><code>perst.compaction.scan.limit</code></TD><TD>Integer</TD><TD>100000</TD>
+     * <TD>Maximal number of object identifiers inspected by one step of online compaction performed 
+     * by <code>compact</code> method.
+     * </TD></TR>
+     * <TR><TD><code>perst.generate.serializers</code></TD><TD>Boolean</TD><TD>true</TD>
+     * <TD>Generate at runtime specialized serializer for each persistent class, which accesses fields of 
+     * primitive types directly instead of using reflection. Serializers are generated only if <code>sun.misc.Unsafe</code>
+     * is available.
+     * </TD></TR>
+     * <TR><TD><code>perst.compact.records</code></TD><TD>Boolean</TD><TD>false</TD>
+     * <TD>Store records of objects in compact format, in which zero bytes of the record (high bytes of small integers
+     * and references, fields with default values, high bytes of characters of Latin-1 strings) are omitted.
+     * This property is used only when database is created, for existing database format specified at its creation is used.
+     * </TD></TR>
+     * <TR><TD><code>perst.group.commit</code></TD><TD>Boolean</TD><TD>false</TD>
+     * <TD>Commit changes of several threads at once. Threads calling <code>commit</code> while
+     * other thread is committing the transaction wait until this commit is completed, then one of them
+     * commits changes of all of them by one flush of the database file, and all of them return. 
+     * </TD></TR>
+     * <TR><TD><code>perst.group.commit.delay</code></TD><TD>Long</TD><TD>0</TD>
+     * <TD>Time in milliseconds thread performing group commit waits before commit to let other
+     * threads join this commit.
+     * </TD></TR>
      * <TR><TD><code>perst.string.encoding</code></TD><TD>String</TD><TD>null</TD>
      * <TD>Specifies encoding of storing strings in the database. By default Perst stores 
      * strings as sequence of chars (two bytes per char). If all strings in application are in 
@@ -553,6 +744,14 @@ public interface Storage {
      * garbage collector in this case.</p> 
      */
     public java.util.HashMap getMemoryDump();
+
+    /**
+     * Get lock statistic. This function returns hashmap which key is classes of locked resources and
+     * value - LockStatistics object which specifies number of granted locks, number of lock requests
+     * which have to wait, timed out or were rejected because of deadlock and time spent waiting for locks.
+     * Statistic is collected only if "perst.lock.manager" property is set.
+     */
+    public java.util.HashMap getLockStatistics();
     
 
     /**
@@ -595,7 +794,15 @@ public interface Storage {
 
     public void loadObject(IPersistent obj);
 
+    public void loadField(ILazyPersistent obj, String name);
+
     public void lockObject(IPersistent obj);
+
+    /**
+     * Get lock manager tracking locks of <code>PersistentResource</code> objects
+     * @return lock manager or <code>null</code> if "perst.lock.manager" property is not set
+     */
+    public ILockManager getLockManager();
 }
 
 
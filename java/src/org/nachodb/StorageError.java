@@ -31,6 +31,11 @@ public class StorageError extends RuntimeException {
     public static final int EMPTY_VALUE            = 25;
     public static final int UNSUPPORTED_ENCODING   = 26;
     public static final int STORAGE_IS_USED        = 27;
+    public static final int INCOMPATIBLE_PAGE_SIZE = 28;
+    public static final int READ_ONLY_SNAPSHOT     = 29;
+    public static final int TRANSACTION_CONFLICT   = 30;
+    public static final int DEADLOCK               = 31;
+    public static final int NOT_SUPPORTED_BY_SNAPSHOT = 32;
 
     private static final String[] messageText = {
         "",
@@ -56,10 +61,16 @@ public class StorageError extends RuntimeException {
         "Could not find indexed field",
         "Lock could not be granted",
         "No such database property",
+        "Bad property value",
         "Attempt to store persistent object as raw object",
         "Attempt to store java.lang.Object as value",
         "Unsupported encoding", 
-        "Storage is used by other application"
+        "Storage is used by other application",
+        "Database page size doesn't match page size used by application",
+        "Snapshot can not be modified",
+        "Transaction conflicts with concurrently committed transaction and should be restarted",
+        "Lock can not be granted because of deadlock",
+        "Operation is not supported by snapshot"
     };
 
     /**
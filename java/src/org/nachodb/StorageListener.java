@@ -38,6 +38,23 @@ public abstract class StorageListener {
      */
     public void gcCompleted(int nDeallocatedObjects) {}
 
+    /**
+     * This method is called after each step of incremental sweep and before completion of garbage collection
+     * @param nVisitedObjects number of objects inspected by sweep
+     * @param nDeallocatedObjects number of deallocated objects
+     * @param reclaimedSize total size of deallocated objects (pages of deallocated B-Trees are not included)
+     */
+    public void gcProgress(int nVisitedObjects, int nDeallocatedObjects, long reclaimedSize) {}
+
+    /**
+     * This method is called when generation of serializer for the class is failed.
+     * Objects of this class are serialized using reflection.
+     * If listener is not set, message is printed to <code>System.err</code>.
+     * @param cls class for which serializer was generated
+     * @param reason exception thrown by the generator
+     */
+    public void serializerGenerationFailed(Class cls, Throwable reason) {}
+
     /**
      * Handle replication error 
      * @param host address of host replication to which is failed (null if error jappens at slave node)
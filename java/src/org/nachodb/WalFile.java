@@ -0,0 +1,342 @@
+package org.nachodb;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import org.nachodb.impl.Bytes;
+
+/**
+ * File with write-ahead log.
+ * All pages written to the file are appended to the sequential log file and are not written
+ * to the database file until checkpoint. <code>sync</code> appends to the log
+ * commit record with checksum of all pages written since previous <code>sync</code> and flushes only
+ * the log. Reads of pages present in the log are served from the log using in-memory index of 
+ * the last logged version of each page.
+ * Checkpoint copies last versions of the logged pages to the database file in order of their offsets,
+ * flushes the database file and truncates the log. It is performed when size
+ * of the log exceeds specified limit and when file is closed.
+ * When file is opened, all complete groups of pages found in the log are copied to the database file.<P>
+ * So transaction commit performs one sequential write and one flush of the log instead of
+ * two flushes of the randomly updated database file, and page updated by several transactions 
+ * is written to the database file only once per checkpoint.
+ */
+public class WalFile implements IFile {
+    /**
+     * Default size of the log at which checkpoint is performed
+     */
+    public static final long DEFAULT_CHECKPOINT_SIZE = 64*1024*1024;
+
+    static final int  RECORD_HEADER_SIZE = 12; // position + length
+    static final long COMMIT_RECORD = -1;
+    static final long EMPTY = -1;
+    static final int  INIT_INDEX_SIZE = 1024;
+
+    public void write(long pos, byte[] buf)
+    {
+        synchronized (this) { 
+            try { 
+                Bytes.pack8(hdr, 0, pos);
+                Bytes.pack4(hdr, 8, buf.length);
+                log.seek(logSize);
+                log.write(hdr);
+                log.write(buf);
+                crc.update(hdr);
+                crc.update(buf);
+                nRecords += 1;
+                putPage(pos, logSize + RECORD_HEADER_SIZE, buf.length);
+                logSize += RECORD_HEADER_SIZE + buf.length;
+            } catch (IOException x) { 
+                throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+            }
+        }
+    }
+
+    public int read(long pos, byte[] buf)
+    {
+        synchronized (this) { 
+            int i = findPage(pos);
+            if (i >= 0) { 
+                int len = buf.length < pageLengths[i] ? buf.length : pageLengths[i];
+                readLog(pageOffsets[i], buf, len);
+                return len;
+            }
+        }
+        // page is either not changed or already copied to the database file
+        return file.read(pos, buf);
+    }
+
+    public synchronized void sync()
+    {
+        try { 
+            if (nRecords != 0) { 
+                Bytes.pack8(hdr, 0, COMMIT_RECORD);
+                Bytes.pack4(hdr, 8, nRecords);
+                byte[] checksum = new byte[8];
+                Bytes.pack8(checksum, 0, crc.getValue());
+                log.seek(logSize);
+                log.write(hdr);
+                log.write(checksum);
+                logSize += RECORD_HEADER_SIZE + 8;
+                if (!noFlush) { 
+                    log.getFD().sync();
+                }
+                nRecords = 0;
+                crc.reset();
+            }
+            if (logSize >= checkpointSize) { 
+                checkpoint();
+            }
+        } catch (IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
+    /**
+     * Copy pages from the log to the database file, flush the database file and truncate the log.
+     * Checkpoint is not performed if there are pages written after last <code>sync</code>, 
+     * because they are not yet committed.
+     */
+    public synchronized void checkpoint()
+    {
+        if (nRecords != 0) { 
+            return;
+        }
+        try { 
+            applyLoggedPages();
+            file.sync();
+            log.setLength(0);
+            logSize = 0;
+        } catch (IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
+    public boolean lock()
+    {
+        return file.lock();
+    }
+
+    public void close()
+    {
+        try { 
+            synchronized (this) { 
+                checkpoint();
+                log.close();
+            }
+        } catch (IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        } finally { 
+            file.close();
+        }
+    }
+
+    public synchronized long length()
+    {
+        long length = file.length();
+        return length < loggedEnd ? loggedEnd : length;
+    }
+
+    /**
+     * Constructor of file with write-ahead log
+     * @param file database file
+     * @param logPath path to the log file
+     */
+    public WalFile(IFile file, String logPath)
+    {
+        this(file, logPath, DEFAULT_CHECKPOINT_SIZE, false);
+    }
+
+    /**
+     * Constructor of file with write-ahead log
+     * @param file database file
+     * @param logPath path to the log file
+     * @param checkpointSize size of the log at which checkpoint is performed
+     * @param noFlush whether flushing of the log to the disk should be skipped
+     */
+    public WalFile(IFile file, String logPath, long checkpointSize, boolean noFlush)
+    {
+        this.file = file;
+        this.checkpointSize = checkpointSize;
+        this.noFlush = noFlush;
+        clearPages(INIT_INDEX_SIZE);
+        try { 
+            log = new RandomAccessFile(logPath, "rw");
+            recover();
+        } catch (IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
+    private void readLog(long pos, byte[] buf, int len)
+    {
+        try { 
+            log.seek(pos);
+            log.readFully(buf, 0, len);
+        } catch (IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
+    private static int hash(long pos) 
+    { 
+        long h = pos * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private int findPage(long pos) 
+    { 
+        for (int i = hash(pos) & pageMask; pageKeys[i] != EMPTY; i = (i + 1) & pageMask) { 
+            if (pageKeys[i] == pos) { 
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Register last logged version of the page
+     */
+    private void putPage(long pos, long offs, int len) 
+    { 
+        int i = hash(pos) & pageMask;
+        while (pageKeys[i] != EMPTY && pageKeys[i] != pos) { 
+            i = (i + 1) & pageMask;
+        }
+        if (pageKeys[i] == EMPTY) { 
+            if ((nPages + 1)*2 > pageKeys.length) { 
+                long[] oldKeys = pageKeys;
+                long[] oldOffsets = pageOffsets;
+                int[]  oldLengths = pageLengths;
+                clearPages(oldKeys.length*2);
+                for (int j = 0; j < oldKeys.length; j++) { 
+                    if (oldKeys[j] != EMPTY) { 
+                        putPage(oldKeys[j], oldOffsets[j], oldLengths[j]);
+                    }
+                }
+                putPage(pos, offs, len);
+                return;
+            }
+            pageKeys[i] = pos;
+            nPages += 1;
+        }
+        pageOffsets[i] = offs;
+        pageLengths[i] = len;
+        if (pos + len > loggedEnd) { 
+            loggedEnd = pos + len;
+        }
+    }
+
+    private void clearPages(int size) 
+    { 
+        pageKeys = new long[size];
+        pageOffsets = new long[size];
+        pageLengths = new int[size];
+        Arrays.fill(pageKeys, EMPTY);
+        pageMask = size - 1;
+        nPages = 0;
+        loggedEnd = 0;
+    }
+
+    /**
+     * Copy last versions of the logged pages to the database file in order of their offsets
+     */
+    private void applyLoggedPages()
+    {
+        if (nPages == 0) { 
+            return;
+        }
+        long[] positions = new long[nPages];
+        for (int i = 0, j = 0; i < pageKeys.length; i++) { 
+            if (pageKeys[i] != EMPTY) { 
+                positions[j++] = pageKeys[i];
+            }
+        }
+        Arrays.sort(positions);
+        byte[] buf = null;
+        for (int j = 0; j < positions.length; j++) { 
+            int i = findPage(positions[j]);
+            if (buf == null || buf.length != pageLengths[i]) { 
+                buf = new byte[pageLengths[i]];
+            }
+            readLog(pageOffsets[i], buf, buf.length);
+            file.write(positions[j], buf);
+        }
+        clearPages(pageKeys.length > INIT_INDEX_SIZE*4 ? INIT_INDEX_SIZE : pageKeys.length);
+    }
+
+    /**
+     * Copy to the database file all complete groups of pages from the log
+     */
+    private void recover() throws IOException
+    {
+        long size = log.length();
+        long pos = 0;
+        long end = 0; // end of the last complete group
+        while (pos + RECORD_HEADER_SIZE <= size) { 
+            log.seek(pos);
+            log.readFully(hdr);
+            long addr = Bytes.unpack8(hdr, 0);
+            int len = Bytes.unpack4(hdr, 8);
+            if (addr == COMMIT_RECORD) { 
+                if (pos + RECORD_HEADER_SIZE + 8 > size) { 
+                    break;
+                }
+                byte[] checksum = new byte[8];
+                log.readFully(checksum);
+                if (len != nRecords || Bytes.unpack8(checksum, 0) != crc.getValue()) { 
+                    break;
+                }
+                nRecords = 0;
+                crc.reset();
+                pos += RECORD_HEADER_SIZE + 8;
+                end = pos;
+            } else { 
+                if (addr < 0 || len < 0 || pos + RECORD_HEADER_SIZE + len > size) { 
+                    break;
+                }
+                byte[] buf = new byte[len];
+                log.readFully(buf);
+                crc.update(hdr);
+                crc.update(buf);
+                nRecords += 1;
+                pos += RECORD_HEADER_SIZE + len;
+            }
+        }
+        // discard incomplete group
+        nRecords = 0;
+        crc.reset();
+        for (pos = 0; pos < end;) { 
+            log.seek(pos);
+            log.readFully(hdr);
+            long addr = Bytes.unpack8(hdr, 0);
+            int len = Bytes.unpack4(hdr, 8);
+            if (addr == COMMIT_RECORD) { 
+                pos += RECORD_HEADER_SIZE + 8;
+            } else { 
+                putPage(addr, pos + RECORD_HEADER_SIZE, len);
+                pos += RECORD_HEADER_SIZE + len;
+            }
+        }
+        applyLoggedPages();
+        if (size != 0) { 
+            file.sync();
+            log.setLength(0);
+        }
+        logSize = 0;
+    }
+
+    IFile            file;
+    RandomAccessFile log;
+    long             logSize;
+    long             checkpointSize;
+    boolean          noFlush;
+    long[]           pageKeys;    // position of the logged page in the database file or EMPTY
+    long[]           pageOffsets; // position of the last version of the page in the log
+    int[]            pageLengths;
+    int              pageMask;
+    int              nPages;
+    long             loggedEnd;   // end of the last logged page, file can be extended by the log
+    int              nRecords;
+    CRC32            crc = new CRC32();
+    byte[]           hdr = new byte[RECORD_HEADER_SIZE];
+}
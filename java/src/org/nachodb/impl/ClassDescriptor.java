@@ -30,6 +30,8 @@ public final class ClassDescriptor extends Persistent {
     transient Object[]    constructorParams;
     transient boolean     hasSubclasses;
     transient boolean     resolved;
+    transient ClassSerializer serializer;
+    transient boolean     serializerGenerated;
     
     static ReflectionProvider reflectionProvider; 
 
@@ -0,0 +1,107 @@
+package org.nachodb.impl;
+
+import org.nachodb.*;
+
+/**
+ * Base class for serializers generated by <code>SerializerGenerator</code>.
+ * Generated serializer packs and unpacks fields of scalar types directly using field offsets,
+ * other fields are packed and unpacked by the storage.
+ * Members of this class are public or protected because generated classes are loaded by separate class loader.
+ */
+public abstract class ClassSerializer {
+    /**
+     * Pack fields of the object
+     * @param db storage
+     * @param obj packed object
+     * @param offs offset in the buffer
+     * @param buf buffer
+     * @param po persistent object containing packed object
+     * @return offset in the buffer after the last packed field
+     */
+    public abstract int pack(StorageImpl db, Object obj, int offs, ByteBuffer buf, IPersistent po) throws Exception;
+
+    /**
+     * Unpack fields of the object
+     * @param db storage
+     * @param obj unpacked object
+     * @param recursiveLoading whether referenced objects should be loaded
+     * @param body serialized object
+     * @param offs offset in the serialized object
+     * @param po persistent object containing unpacked object
+     * @return offset in the serialized object after the last unpacked field
+     */
+    public abstract int unpack(StorageImpl db, Object obj, boolean recursiveLoading, byte[] body, int offs, IPersistent po) throws Exception;
+
+    protected final int packFields(StorageImpl db, Object obj, int from, int till, int offs, ByteBuffer buf, IPersistent po)
+        throws Exception
+    {
+        return db.packFields(obj, desc.allFields, from, till, offs, buf, po);
+    }
+
+    protected final int unpackFields(StorageImpl db, Object obj, int from, int till, boolean recursiveLoading, byte[] body, int offs, IPersistent po)
+        throws Exception
+    {
+        return db.unpackFields(obj, desc.allFields, from, till, recursiveLoading, body, offs, po);
+    }
+
+    protected static int packBoolean(ByteBuffer buf, int offs, boolean val) {
+        buf.extend(offs + 1);
+        buf.arr[offs] = (byte)(val ? 1 : 0);
+        return offs + 1;
+    }
+
+    protected static int packByte(ByteBuffer buf, int offs, byte val) {
+        buf.extend(offs + 1);
+        buf.arr[offs] = val;
+        return offs + 1;
+    }
+
+    protected static int packChar(ByteBuffer buf, int offs, char val) {
+        buf.extend(offs + 2);
+        Bytes.pack2(buf.arr, offs, (short)val);
+        return offs + 2;
+    }
+
+    protected static int packShort(ByteBuffer buf, int offs, short val) {
+        buf.extend(offs + 2);
+        Bytes.pack2(buf.arr, offs, val);
+        return offs + 2;
+    }
+
+    protected static int packInt(ByteBuffer buf, int offs, int val) {
+        buf.extend(offs + 4);
+        Bytes.pack4(buf.arr, offs, val);
+        return offs + 4;
+    }
+
+    protected static int packLong(ByteBuffer buf, int offs, long val) {
+        buf.extend(offs + 8);
+        Bytes.pack8(buf.arr, offs, val);
+        return offs + 8;
+    }
+
+    protected static int packFloat(ByteBuffer buf, int offs, float val) {
+        buf.extend(offs + 4);
+        Bytes.pack4(buf.arr, offs, Float.floatToIntBits(val));
+        return offs + 4;
+    }
+
+    protected static int packDouble(ByteBuffer buf, int offs, double val) {
+        buf.extend(offs + 8);
+        Bytes.pack8(buf.arr, offs, Double.doubleToLongBits(val));
+        return offs + 8;
+    }
+
+    protected static boolean unpackBoolean(byte[] body, int offs) {
+        return body[offs] != 0;
+    }
+
+    protected ClassSerializer() {}
+
+    /**
+     * Instance of <code>sun.misc.Unsafe</code> used by generated code to access fields
+     */
+    protected static Object unsafe;
+
+    ClassDescriptor desc;
+}
@@ -0,0 +1,49 @@
+package org.nachodb.impl;
+
+/**
+ * CLOCK page replacement policy (approximation of LRU).
+ * All resident pages are kept in the circular list and access to the page only sets its 
+ * reference bit, so no list manipulations are needed on page pool hit. Clock hand sweeps the 
+ * list clearing reference bits and selects first unused page with cleared reference bit. 
+ */
+class ClockReplacementPolicy implements PageReplacementPolicy { 
+    LRU ring = new LRU();
+    LRU hand = ring;
+    int nPages;
+
+    static final int REFERENCED = 1;
+
+    public void load(Page pg) { 
+        // new page is placed just before the hand, so it will be inspected last
+        hand.prev.link(pg);
+        pg.policyState = REFERENCED;
+        nPages += 1;
+    }
+
+    public void fix(Page pg) { 
+        pg.policyState = REFERENCED;
+    }
+
+    public void unfix(Page pg) {}
+
+    public Page evict() { 
+        // each page is inspected at most twice: first time its reference bit is cleared
+        for (int i = nPages*2; --i >= 0;) { 
+            hand = hand.next;
+            if (hand == ring) { 
+                hand = hand.next;
+            }
+            Page pg = (Page)hand;
+            if (pg.accessCount == 0 && (pg.state & Page.psPinned) == 0) { 
+                if (pg.policyState == 0) { 
+                    hand = pg.prev;
+                    pg.unlink();
+                    nPages -= 1;
+                    return pg;
+                }
+                pg.policyState = 0;
+            }
+        }
+        return null;
+    }
+}
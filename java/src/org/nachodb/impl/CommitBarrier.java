@@ -0,0 +1,65 @@
+package org.nachodb.impl;
+import  org.nachodb.*;
+
+/**
+ * Barrier preventing writes of pages to the file while asynchronous commit is not durable.
+ * Pages of asynchronously committed transaction are written by the committing thread,
+ * but the file is synced and the new header is written by the commit thread. Pages modified 
+ * after the commit can not be written to the file before its header is durable, 
+ * because them can overwrite the last durable state of the database.
+ * If asynchronous commit fails, the barrier is never passed any more: state of the database
+ * after the failed commit is not durable and no page based on it can be written to the file.
+ */
+class CommitBarrier { 
+    private boolean      locked;
+    private StorageError failure;
+
+    synchronized void lock() { 
+        locked = true;
+    }
+
+    synchronized void unlock() { 
+        locked = false;
+        notifyAll();
+    }
+
+    /**
+     * Mark barrier as failed because of error of asynchronous commit
+     */
+    synchronized void fail(StorageError error) { 
+        failure = error;
+        locked = false;
+        notifyAll();
+    }
+
+    /**
+     * Get error of failed asynchronous commit
+     * @return error of asynchronous commit or <code>null</code> if no commit has failed
+     */
+    synchronized StorageError getFailure() { 
+        return failure;
+    }
+
+    /**
+     * Check that no asynchronous commit has failed
+     * @exception StorageError(FILE_ACCESS_ERROR) if asynchronous commit has failed
+     */
+    synchronized void check() { 
+        if (failure != null) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, failure);
+        }
+    }
+
+    /**
+     * Wait until barrier is unlocked
+     * @exception StorageError(FILE_ACCESS_ERROR) if asynchronous commit has failed
+     */
+    synchronized void pass() { 
+        while (locked) { 
+            try { 
+                wait();
+            } catch (InterruptedException x) {}
+        }
+        check();
+    }
+}
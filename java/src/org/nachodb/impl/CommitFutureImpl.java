@@ -0,0 +1,45 @@
+package org.nachodb.impl;
+import  org.nachodb.*;
+
+class CommitFutureImpl implements CommitFuture { 
+    private boolean      done;
+    private StorageError error;
+
+    public synchronized boolean isDone() { 
+        return done;
+    }
+
+    public synchronized void waitFor() { 
+        while (!done) { 
+            try { 
+                wait();
+            } catch (InterruptedException x) {}
+        }
+        if (error != null) { 
+            throw error;
+        }
+    }
+
+    public synchronized boolean waitFor(long timeout) { 
+        long stopTime = System.currentTimeMillis() + timeout;
+        while (!done) { 
+            long now = System.currentTimeMillis();
+            if (now >= stopTime) { 
+                return false;
+            }
+            try { 
+                wait(stopTime - now);
+            } catch (InterruptedException x) {}
+        }
+        if (error != null) { 
+            throw error;
+        }
+        return true;
+    }
+
+    synchronized void complete(StorageError error) { 
+        this.error = error;
+        done = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,130 @@
+package org.nachodb.impl;
+
+/**
+ * Compact format of object records.
+ * Body of the record (following the object header) is split into groups of 8 bytes. Each group is stored
+ * as tag byte, which bits mark non-zero bytes of the group, followed by these non-zero bytes.
+ * Tag of group consisting of zero bytes is followed by number of subsequent zero groups, and tag of group
+ * without zero bytes - by number of subsequent groups without zero bytes, which are stored as is.
+ * So small integer values, object references, fields with default values and characters of Latin-1 strings
+ * take less space, while incompressible data is stored with negligible overhead.<P>
+ * Compact record consists of the object header (containing size of compact record and type of the object),
+ * size of the expanded record (unsigned varint) and groups of the body.
+ */
+class CompactRecord {
+    /**
+     * Convert record to compact format
+     * @param rec record in standard format
+     * @return record in compact format
+     */
+    static byte[] pack(byte[] rec) {
+        ByteBuffer buf = new ByteBuffer();
+        pack(rec, buf);
+        return buf.toArray();
+    }
+
+    /**
+     * Convert record to compact format placing it in the specified buffer
+     * @param rec record in standard format
+     * @param out buffer receiving record in compact format
+     */
+    static void pack(byte[] rec, ByteBuffer out) {
+        int end = ObjectHeader.getSize(rec, 0);
+        int bodySize = end - ObjectHeader.sizeof;
+        out.used = 0;
+        out.extend(ObjectHeader.sizeof + 5 + bodySize + (bodySize >>> 3)*2 + 2);
+        byte[] buf = out.arr;
+        int src = ObjectHeader.sizeof;
+        int dst = ObjectHeader.sizeof;
+        int size = end;
+        while ((size & ~0x7F) != 0) { 
+            buf[dst++] = (byte)(size | 0x80);
+            size >>>= 7;
+        }
+        buf[dst++] = (byte)size;
+        while (src < end) { 
+            int len = end - src < 8 ? end - src : 8;
+            int tagPos = dst++;
+            int tag = 0;
+            for (int j = 0; j < len; j++) { 
+                byte b = rec[src + j];
+                if (b != 0) { 
+                    tag |= 1 << j;
+                    buf[dst++] = b;
+                }
+            }
+            src += len;
+            buf[tagPos] = (byte)tag;
+            if (tag == 0) { 
+                int n = 0;
+                while (n < 255 && src + 8 <= end && countZeroBytes(rec, src) == 8) { 
+                    n += 1;
+                    src += 8;
+                }
+                buf[dst++] = (byte)n;
+            } else if (tag == 0xFF) { 
+                int n = 0;
+                int start = src;
+                while (n < 255 && src + 8 <= end && countZeroBytes(rec, src) == 0) { 
+                    n += 1;
+                    src += 8;
+                }
+                buf[dst++] = (byte)n;
+                System.arraycopy(rec, start, buf, dst, n*8);
+                dst += n*8;
+            }
+        }
+        System.arraycopy(rec, 0, buf, 0, ObjectHeader.sizeof);
+        ObjectHeader.setSize(buf, 0, dst);
+        out.used = dst;
+    }
+
+    /**
+     * Convert record from compact format
+     * @param rec record in compact format
+     * @return record in standard format
+     */
+    static byte[] unpack(byte[] rec) {
+        int src = ObjectHeader.sizeof;
+        int size = 0;
+        int shift = 0;
+        byte b;
+        do { 
+            b = rec[src++];
+            size |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        byte[] result = new byte[size];
+        System.arraycopy(rec, 0, result, 0, ObjectHeader.sizeof);
+        ObjectHeader.setSize(result, 0, size);
+        int dst = ObjectHeader.sizeof;
+        while (dst < size) { 
+            int tag = rec[src++] & 0xFF;
+            for (int j = 0; tag >> j != 0; j++) { 
+                if ((tag & (1 << j)) != 0) { 
+                    result[dst + j] = rec[src++];
+                }
+            }
+            dst += 8;
+            if (tag == 0) { 
+                dst += (rec[src++] & 0xFF)*8;
+            } else if (tag == 0xFF) { 
+                int len = (rec[src++] & 0xFF)*8;
+                System.arraycopy(rec, src, result, dst, len);
+                src += len;
+                dst += len;
+            }
+        }
+        return result;
+    }
+
+    private static int countZeroBytes(byte[] rec, int offs) {
+        int n = 0;
+        for (int i = 0; i < 8; i++) { 
+            if (rec[offs + i] == 0) { 
+                n += 1;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,78 @@
+package org.nachodb.impl;
+import  org.nachodb.*;
+
+/**
+ * Thread writing dirty pages of the page pool to the file between transaction commits.
+ * Writer is activated when percent of dirty pages in the pool exceeds high watermark and
+ * writes unused dirty pages until their percent is less than low watermark.
+ * So commit has to write only rest of dirty pages and sync the file.
+ */
+class DirtyPageWriter extends Thread { 
+    PagePool pool;
+    int      highWatermark;
+    int      lowWatermark;
+    boolean  go;
+    volatile boolean stopped;
+
+    /**
+     * Lock preventing concurrent execution of write back and pool flush: 
+     * pages written by writer should be written to the disk before the file is synced by commit
+     */
+    final Object writeLock = new Object();
+
+    /**
+     * Maximal number of pages written by one write back operation
+     */
+    static final int WRITE_BATCH_SIZE = 64;
+
+    DirtyPageWriter(PagePool pool, int highWatermark, int lowWatermark) { 
+        this.pool = pool;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        setDaemon(true);
+        start();
+    }
+
+    synchronized void activate() { 
+        if (!go) { 
+            go = true;
+            notify();
+        }
+    }
+
+    void terminate() { 
+        synchronized (this) { 
+            stopped = true;
+            notify();
+        }
+        try { 
+            join();
+        } catch (InterruptedException x) {}
+    }
+
+    public void run() { 
+        try { 
+            while (true) { 
+                synchronized (this) { 
+                    while (!go && !stopped) { 
+                        wait();
+                    }
+                    if (stopped) { 
+                        return;
+                    }
+                    go = false;
+                }
+                while (!stopped && (long)pool.getDirtyPageCount()*100 > (long)pool.poolSize*lowWatermark) { 
+                    synchronized (writeLock) { 
+                        if (pool.writeBack(WRITE_BATCH_SIZE) == 0) { 
+                            break;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException x) { 
+        } catch (StorageError x) { 
+            // write error will be reported by commit
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.nachodb.impl;
+
+/**
+ * Summary tree over pages of the allocation bitmap.
+ * Leaf of the tree contains upper bound of the size (in allocation quanta) of free space in the correspondent
+ * bitmap page: page doesn't contain hole of this or larger size. <code>Integer.MAX_VALUE</code> means that page
+ * was not inspected since it was changed. Inner node contains maximum of the values of its children,
+ * so allocator can locate the first page which can contain hole of the requested size in O(log n) time
+ * instead of iterating through all bitmap pages.<P>
+ * Values are derived from the bitmap: them are set when allocator inspects the page and reset
+ * when space in the page is deallocated or transaction is rolled back, so index is not stored in the database
+ * and is rebuilt lazily after the storage is opened.
+ */
+class FreeSpaceIndex {
+    FreeSpaceIndex(int nPages) {
+        size = 1;
+        while (size < nPages) { 
+            size <<= 1;
+        }
+        tree = new int[size*2];
+        this.nPages = nPages;
+        reset();
+    }
+
+    /**
+     * Get upper bound of free space in the page
+     */
+    final int get(int page) {
+        return tree[size + page];
+    }
+
+    /**
+     * Set upper bound of free space in the page
+     */
+    final void set(int page, int space) {
+        int node = size + page;
+        if (tree[node] != space) { 
+            tree[node] = space;
+            while ((node >>>= 1) != 0) { 
+                int max = tree[node*2] > tree[node*2+1] ? tree[node*2] : tree[node*2+1];
+                if (tree[node] == max) { 
+                    break;
+                }
+                tree[node] = max;
+            }
+        }
+    }
+
+    /**
+     * Locate the first page in the specified range which can contain hole of the specified size
+     * @param from first page of the range (inclusive)
+     * @param till last page of the range (exclusive)
+     * @param space size of the hole
+     * @return number of the page with upper bound of free space greater than <code>space</code> or
+     * <code>till</code> if there is no such page in the range
+     */
+    final int findFirst(int from, int till, int space) {
+        if (from >= till) { 
+            return till;
+        }
+        int node = size + from;
+        while (tree[node] <= space) { 
+            while ((node & 1) != 0) { 
+                node >>>= 1;
+            }
+            if (node == 0) { 
+                return till;
+            }
+            node += 1;
+        }
+        while (node < size) { 
+            node = tree[node*2] > space ? node*2 : node*2+1;
+        }
+        node -= size;
+        return node < till ? node : till;
+    }
+
+    /**
+     * Increase number of bitmap pages
+     */
+    final void extend(int newPages) {
+        if (newPages > size) { 
+            FreeSpaceIndex newIndex = new FreeSpaceIndex(newPages);
+            for (int i = 0; i < nPages; i++) { 
+                newIndex.tree[newIndex.size + i] = tree[size + i];
+            }
+            newIndex.build();
+            size = newIndex.size;
+            tree = newIndex.tree;
+            nPages = newPages;
+        } else { 
+            for (int i = nPages; i < newPages; i++) { 
+                set(i, Integer.MAX_VALUE);
+            }
+            nPages = newPages;
+        }
+    }
+
+    /**
+     * Mark all pages as not inspected
+     */
+    final void reset() {
+        for (int i = 0; i < size; i++) { 
+            tree[size + i] = i < nPages ? Integer.MAX_VALUE : 0;
+        }
+        build();
+    }
+
+    private void build() {
+        for (int node = size; --node > 0;) { 
+            tree[node] = tree[node*2] > tree[node*2+1] ? tree[node*2] : tree[node*2+1];
+        }
+    }
+
+    int[] tree;
+    int   size;
+    int   nPages;
+}
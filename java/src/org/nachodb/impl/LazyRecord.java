@@ -0,0 +1,30 @@
+package org.nachodb.impl;
+
+/**
+ * Record of the object implementing <code>ILazyPersistent</code> and positions in it 
+ * of the fields which were not unpacked yet
+ */
+class LazyRecord {
+    byte[]                            body;
+    ClassDescriptor.FieldDescriptor[] fields;
+    int[]                             offsets; // offset of the field in the record or -1 if field is unpacked
+    int                               nPending;
+    boolean                           recursiveLoading;
+    boolean                           unpacking; // object is being unpacked, so fields should be deferred
+
+    final void defer(int i, int offs) { 
+        offsets[i] = offs;
+        nPending += 1;
+    }
+
+    LazyRecord(byte[] body, ClassDescriptor.FieldDescriptor[] fields, boolean recursiveLoading) { 
+        this.body = body;
+        this.fields = fields;
+        this.recursiveLoading = recursiveLoading;
+        offsets = new int[fields.length];
+        for (int i = 0; i < offsets.length; i++) { 
+            offsets[i] = -1;
+        }
+        unpacking = true;
+    }
+}
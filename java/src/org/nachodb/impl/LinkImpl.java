@@ -210,6 +210,9 @@ public class LinkImpl implements Link {
         if (elem != null && elem.isRaw()) { 
             // arr[i] = elem = ((StorageImpl)elem.getStorage()).lookupObject(elem.getOid(), null);
             elem = ((StorageImpl)elem.getStorage()).lookupObject(elem.getOid(), null);
+        } else if (elem != null && elem.isPersistent()) { 
+            // loaded element is not looked up, but it has to be included in read set of optimistic transaction
+            ((StorageImpl)elem.getStorage()).recordObjectVersion(elem, false);
         }
         return elem;
     }
@@ -0,0 +1,182 @@
+package org.nachodb.impl;
+
+import java.util.*;
+
+import org.nachodb.*;
+
+/**
+ * Storage level lock manager.
+ * It keeps track of threads holding and waiting for locks of persistent resources, detects
+ * deadlocks by looking for cycles in the wait-for graph when thread is going to wait for the lock
+ * and collects lock statistic for each class of resources.
+ * Thread which request causes deadlock is chosen as victim: its lock request fails with
+ * <code>StorageError.DEADLOCK</code> error.
+ */
+public class LockManager implements ILockManager {
+    /**
+     * Register lock granted to the current thread
+     * @param resource locked resource
+     * @param waitStart time when thread started waiting for the lock or 0 if lock was granted immediately
+     */
+    public synchronized void lockGranted(IResource resource, long waitStart) {
+        Thread currThread = Thread.currentThread();
+        IdentityHashMap owners = (IdentityHashMap)holders.get(resource);
+        if (owners == null) { 
+            owners = new IdentityHashMap();
+            holders.put(resource, owners);
+        }
+        int[] nLocks = (int[])owners.get(currThread);
+        if (nLocks == null) { 
+            owners.put(currThread, new int[]{1});
+        } else { 
+            nLocks[0] += 1;
+        }
+        LockStatistics stat = getStatistics(resource);
+        stat.nLocks += 1;
+        if (waitStart != 0) { 
+            waiting.remove(currThread);
+            stat.nContentions += 1;
+            addWaitTime(stat, waitStart);
+        }
+    }
+
+    /**
+     * Register that current thread is going to wait for the lock and check for deadlock.
+     * @param resource resource which lock is requested
+     * @param waitStart time when thread started waiting for the lock or 0 if it is first attempt
+     * @return time when thread started waiting for the lock
+     * @exception StorageError(StorageError.DEADLOCK) if waiting for the lock will cause deadlock
+     */
+    public synchronized long beginWait(IResource resource, long waitStart) {
+        Thread currThread = Thread.currentThread();
+        if (waitStart == 0) { 
+            waitStart = System.currentTimeMillis();
+        }
+        waiting.put(currThread, resource);
+        if (isBlockedBy(resource, currThread, new IdentityHashMap())) { 
+            waiting.remove(currThread);
+            LockStatistics stat = getStatistics(resource);
+            stat.nDeadlocks += 1;
+            addWaitTime(stat, waitStart);
+            throw new StorageError(StorageError.DEADLOCK);
+        }
+        return waitStart;
+    }
+
+    /**
+     * Register that current thread has not got the lock within specified timeout
+     * @param resource resource which lock was requested
+     * @param waitStart time when thread started waiting for the lock
+     */
+    public synchronized void lockTimeout(IResource resource, long waitStart) {
+        waiting.remove(Thread.currentThread());
+        LockStatistics stat = getStatistics(resource);
+        stat.nTimeouts += 1;
+        addWaitTime(stat, waitStart);
+    }
+
+    /**
+     * Register that current thread has stopped waiting for the lock without getting it
+     */
+    public synchronized void cancelWait() {
+        waiting.remove(Thread.currentThread());
+    }
+
+    /**
+     * Register release of the lock by the current thread
+     */
+    public synchronized void unlocked(IResource resource) {
+        IdentityHashMap owners = (IdentityHashMap)holders.get(resource);
+        if (owners != null) { 
+            Thread currThread = Thread.currentThread();
+            int[] nLocks = (int[])owners.get(currThread);
+            if (nLocks != null && --nLocks[0] == 0) { 
+                owners.remove(currThread);
+                if (owners.size() == 0) { 
+                    holders.remove(resource);
+                }
+            }
+        }
+    }
+
+    /**
+     * Register release of all locks of the resource
+     */
+    public synchronized void reset(IResource resource) {
+        holders.remove(resource);
+    }
+
+    /**
+     * Get lock statistic
+     * @return map with class of resources as key and <code>LockStatistics</code> as value
+     */
+    public synchronized HashMap getStatistics() {
+        HashMap map = new HashMap();
+        Iterator iterator = statistics.values().iterator();
+        while (iterator.hasNext()) { 
+            LockStatistics stat = (LockStatistics)iterator.next();
+            LockStatistics copy = new LockStatistics(stat.cls);
+            copy.nLocks = stat.nLocks;
+            copy.nContentions = stat.nContentions;
+            copy.nTimeouts = stat.nTimeouts;
+            copy.nDeadlocks = stat.nDeadlocks;
+            copy.totalWaitTime = stat.totalWaitTime;
+            copy.maxWaitTime = stat.maxWaitTime;
+            map.put(copy.cls, copy);
+        }
+        return map;
+    }
+
+    /**
+     * Check if some of the threads holding lock of the resource (directly or through the chain
+     * of waiting threads) waits for the specified thread
+     */
+    private boolean isBlockedBy(IResource resource, Thread thread, IdentityHashMap visited) {
+        if (visited.put(resource, resource) != null) { 
+            return false;
+        }
+        IdentityHashMap owners = (IdentityHashMap)holders.get(resource);
+        if (owners != null) { 
+            Iterator iterator = owners.keySet().iterator();
+            while (iterator.hasNext()) { 
+                Thread owner = (Thread)iterator.next();
+                if (owner != thread) { 
+                    IResource next = (IResource)waiting.get(owner);
+                    if (next != null && isWaitingFor(next, thread, visited)) { 
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isWaitingFor(IResource resource, Thread thread, IdentityHashMap visited) {
+        IdentityHashMap owners = (IdentityHashMap)holders.get(resource);
+        if (owners != null && owners.containsKey(thread)) { 
+            return true;
+        }
+        return isBlockedBy(resource, thread, visited);
+    }
+
+    private LockStatistics getStatistics(IResource resource) {
+        LockStatistics stat = (LockStatistics)statistics.get(resource.getClass());
+        if (stat == null) { 
+            stat = new LockStatistics(resource.getClass());
+            statistics.put(resource.getClass(), stat);
+        }
+        return stat;
+    }
+
+    private static void addWaitTime(LockStatistics stat, long waitStart) {
+        long waitTime = System.currentTimeMillis() - waitStart;
+        stat.totalWaitTime += waitTime;
+        if (waitTime > stat.maxWaitTime) { 
+            stat.maxWaitTime = waitTime;
+        }
+    }
+
+    IdentityHashMap holders = new IdentityHashMap(); // resource -> map of threads holding the lock to number of locks
+    IdentityHashMap waiting = new IdentityHashMap(); // thread -> resource which lock it is waiting for
+    HashMap         statistics = new HashMap();      // class -> LockStatistics
+}
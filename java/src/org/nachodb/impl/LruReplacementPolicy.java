@@ -0,0 +1,30 @@
+package org.nachodb.impl;
+
+/**
+ * Least recently used page replacement policy. 
+ * Only unused pages are kept in the LRU list, page is removed from the list when it is accessed.
+ */
+class LruReplacementPolicy implements PageReplacementPolicy { 
+    LRU lru = new LRU();
+
+    public void load(Page pg) {}
+
+    public void fix(Page pg) { 
+        pg.unlink();
+    }
+
+    public void unfix(Page pg) { 
+        lru.link(pg);
+    }
+
+    public Page evict() { 
+        for (LRU node = lru.prev; node != lru; node = node.prev) { 
+            Page pg = (Page)node;
+            if ((pg.state & Page.psPinned) == 0) { 
+                pg.unlink();
+                return pg;
+            }
+        }
+        return null;
+    }
+}
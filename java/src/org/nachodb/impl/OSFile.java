@@ -3,13 +3,44 @@ import  org.nachodb.*;
 
 import java.lang.reflect.*;
 import java.io.*;
+import java.nio.channels.FileChannel;
 
-public class OSFile implements IFile { 
+public class OSFile implements IGatheringFile, ITruncatableFile { 
     public void write(long pos, byte[] buf) 
     {
         try { 
-            file.seek(pos);
-            file.write(buf, 0, buf.length);
+            if (channel != null) { 
+                java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(buf);
+                do { 
+                    channel.write(bb, pos + bb.position());
+                } while (bb.hasRemaining());
+            } else { 
+                synchronized (file) { 
+                    file.seek(pos);
+                    file.write(buf, 0, buf.length);
+                }
+            }
+        } catch(IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
+    public void write(long pos, byte[][] bufs, int nBufs) 
+    {
+        java.nio.ByteBuffer[] bb = new java.nio.ByteBuffer[nBufs];
+        long size = 0;
+        for (int i = 0; i < nBufs; i++) { 
+            bb[i] = java.nio.ByteBuffer.wrap(bufs[i]);
+            size += bufs[i].length;
+        }
+        try { 
+            FileChannel chan = file.getChannel();
+            synchronized (file) { 
+                chan.position(pos);
+                do { 
+                    size -= chan.write(bb);
+                } while (size > 0);
+            }
         } catch(IOException x) { 
             throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
         }
@@ -18,8 +49,20 @@ public class OSFile implements IFile {
     public int read(long pos, byte[] buf) 
     { 
         try { 
-            file.seek(pos);
-            return file.read(buf, 0, buf.length);
+            if (channel != null) { 
+                java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(buf);
+                do { 
+                    if (channel.read(bb, pos + bb.position()) < 0) { 
+                        return bb.position() == 0 ? -1 : bb.position();
+                    }
+                } while (bb.hasRemaining());
+                return buf.length;
+            } else { 
+                synchronized (file) { 
+                    file.seek(pos);
+                    return file.read(buf, 0, buf.length);
+                }
+            }
         } catch(IOException x) { 
             throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
         }
@@ -36,6 +79,17 @@ public class OSFile implements IFile {
         }
     }
     
+    public void truncate(long size) 
+    { 
+        try { 
+            if (file.length() > size) { 
+                file.setLength(size);
+            }
+        } catch(IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
     public void close() 
     { 
         try { 
@@ -81,9 +135,27 @@ public class OSFile implements IFile {
     }
 
     public OSFile(String filePath, boolean readOnly, boolean noFlush) { 
+        this(filePath, readOnly, noFlush, false);
+    }
+
+    /**
+     * Constructor of OS file
+     * @param filePath path to the file
+     * @param readOnly whether file should be opened in read-only mode
+     * @param noFlush whether flushing of file buffers to the disk should be skipped
+     * @param positionalIO use positional read and write operations of NIO file channel.
+     * Such operations do not change shared file pointer, so several threads can read pages
+     * from the file in parallel. Otherwise file pointer is moved by <code>seek</code> and 
+     * file operations are serialized. Please notice that file channel is closed
+     * if thread performing IO operation on it is interrupted.
+     */
+    public OSFile(String filePath, boolean readOnly, boolean noFlush, boolean positionalIO) { 
         this.noFlush = noFlush;
         try { 
             file = new RandomAccessFile(filePath, readOnly ? "r" : "rw");
+            if (positionalIO) { 
+                channel = file.getChannel();
+            }
         } catch(IOException x) { 
             throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
         }
@@ -99,5 +171,6 @@ public class OSFile implements IFile {
 
 
     protected RandomAccessFile file;
+    protected FileChannel      channel;
     protected boolean          noFlush;
 }
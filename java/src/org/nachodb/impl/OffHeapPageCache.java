@@ -0,0 +1,121 @@
+package org.nachodb.impl;
+import  java.nio.ByteBuffer;
+
+/**
+ * Second level page cache located outside Java heap.
+ * Page frames are stored in large direct byte buffers (slabs), so size of this cache 
+ * doesn't affect garbage collection time. Clean pages evicted from the page pool are placed 
+ * in this cache and page pool miss is served by copying page from the slab instead of reading it 
+ * from the file. Cache is exclusive: page is removed from it when loaded in the page pool,
+ * so the copy in this cache never becomes stale. Frames are reused in FIFO order.
+ */
+class OffHeapPageCache { 
+    ByteBuffer slabs[];
+    int        framesPerSlab;
+    long       frameAddr[];
+    int        hashTable[];
+    int        collisionChain[];
+    int        next[];
+    int        prev[];
+    int        freeFrames;
+    int        nFrames;
+
+    /**
+     * Size of one direct buffer
+     */
+    static final int SLAB_SIZE = 64*1024*1024;
+
+    OffHeapPageCache(long size) { 
+        nFrames = (int)(size / Page.pageSize);
+        if (nFrames <= 0) { 
+            nFrames = 1;
+        }
+        framesPerSlab = SLAB_SIZE / Page.pageSize;
+        int nSlabs = (nFrames + framesPerSlab - 1) / framesPerSlab;
+        slabs = new ByteBuffer[nSlabs];
+        for (int i = 0; i < nSlabs; i++) { 
+            int slabFrames = i == nSlabs-1 ? nFrames - i*framesPerSlab : framesPerSlab;
+            slabs[i] = ByteBuffer.allocateDirect(slabFrames*Page.pageSize);
+        }
+        frameAddr = new long[nFrames];
+        hashTable = new int[nFrames];
+        collisionChain = new int[nFrames];
+        // element nFrames is head of FIFO list
+        next = new int[nFrames+1];
+        prev = new int[nFrames+1];
+        next[nFrames] = prev[nFrames] = nFrames;
+        for (int i = 0; i < nFrames; i++) { 
+            hashTable[i] = -1;
+            collisionChain[i] = i+1 < nFrames ? i+1 : -1;
+        }
+        freeFrames = 0;
+    }
+
+    private final int hash(long addr) { 
+        return (int)((addr >>> Page.pageBits) % nFrames);
+    }
+
+    /**
+     * Place copy of the clean page in the cache
+     * @param addr page offset in the file
+     * @param data page content
+     */
+    synchronized void store(long addr, byte[] data) { 
+        int frame = freeFrames;
+        if (frame >= 0) { 
+            freeFrames = collisionChain[frame];
+        } else { 
+            frame = next[nFrames];
+            exclude(frame);
+        }
+        frameAddr[frame] = addr;
+        int h = hash(addr);
+        collisionChain[frame] = hashTable[h];
+        hashTable[h] = frame;
+        prev[frame] = prev[nFrames];
+        next[frame] = nFrames;
+        next[prev[nFrames]] = frame;
+        prev[nFrames] = frame;
+
+        ByteBuffer slab = slabs[frame / framesPerSlab];
+        slab.position((frame % framesPerSlab)*Page.pageSize);
+        slab.put(data, 0, Page.pageSize);
+    }
+
+    /**
+     * Load page from the cache and remove it from the cache
+     * @param addr page offset in the file
+     * @param data buffer to receive page content
+     * @return <code>true</code> if page was found in the cache, <code>false</code> otherwise
+     */
+    synchronized boolean load(long addr, byte[] data) { 
+        int frame;
+        for (frame = hashTable[hash(addr)]; frame >= 0 && frameAddr[frame] != addr; frame = collisionChain[frame]);
+        if (frame < 0) { 
+            return false;
+        }
+        ByteBuffer slab = slabs[frame / framesPerSlab];
+        slab.position((frame % framesPerSlab)*Page.pageSize);
+        slab.get(data, 0, Page.pageSize);
+        exclude(frame);
+        collisionChain[frame] = freeFrames;
+        freeFrames = frame;
+        return true;
+    }
+
+    private final void exclude(int frame) { 
+        next[prev[frame]] = next[frame];
+        prev[next[frame]] = prev[frame];
+        int h = hash(frameAddr[frame]);
+        int curr = hashTable[h], last = -1;
+        while (curr != frame) { 
+            last = curr;
+            curr = collisionChain[curr];
+        }
+        if (last < 0) { 
+            hashTable[h] = collisionChain[frame];
+        } else { 
+            collisionChain[last] = collisionChain[frame];
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.nachodb.impl;
+
+/**
+ * Buffers used by the thread to pack objects.
+ * Packing of the object can cause storing of referenced transient objects, so each level of recursion
+ * uses its own buffer. Buffers are reused by subsequent stores, so storing of the object doesn't allocate memory
+ * unless its record is larger than records previously packed by this thread at the same level.
+ */
+class PackBuffers {
+    /**
+     * Get buffer for packing of the object
+     * @return empty buffer
+     */
+    final ByteBuffer acquire() { 
+        if (depth == stack.length) { 
+            ByteBuffer[] newStack = new ByteBuffer[depth*2];
+            System.arraycopy(stack, 0, newStack, 0, depth);
+            stack = newStack;
+        }
+        ByteBuffer buf = stack[depth];
+        if (buf == null) { 
+            stack[depth] = buf = new ByteBuffer();
+        }
+        depth += 1;
+        buf.used = 0;
+        return buf;
+    }
+
+    /**
+     * Return buffer obtained by <code>acquire</code>.
+     * Buffers grown for very large records are not retained.
+     * @param buf released buffer
+     */
+    final void release(ByteBuffer buf) { 
+        depth -= 1;
+        if (buf.arr.length > maxRetainedSize) { 
+            stack[depth] = null;
+        }
+        if (compactBuffer.arr.length > maxRetainedSize) { 
+            compactBuffer = new ByteBuffer();
+        }
+    }
+
+    static final int maxRetainedSize = Page.pageSize*16;
+
+    ByteBuffer[] stack = new ByteBuffer[4];
+    int          depth;
+    ByteBuffer   compactBuffer = new ByteBuffer(); // buffer for record converted to compact format
+}
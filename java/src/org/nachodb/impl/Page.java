@@ -5,16 +5,57 @@ public class Page extends LRU implements Comparable {
     int  accessCount;
     int  writeQueueIndex;
     int  state;
+    int  policyState; // state of the page maintained by page replacement policy
     long offs;
     byte data[];
 
     static final int psDirty = 0x01;// page has been modified
     static final int psRaw   = 0x02;// page is loaded from the disk
     static final int psWait  = 0x04;// other thread(s) wait load operation completion
+    static final int psPinned= 0x08;// page is being written to the file and can not be evicted
 
-    public static final int pageBits = 12;
+    static final int defaultPageBits = 12;
+    static final int minPageBits = 12;
+    static final int maxPageBits = 15; // offsets in B-Tree page are stored as signed 16-bit integers
+
+    /**
+     * Log2 of page size specified by "perst.page.size" system property or -1 if the value is not valid.
+     * Error can not be reported by static initializer (class would become unusable), so default page size 
+     * is used in this case and error is reported when storage is opened.
+     */
+    static final int specifiedPageBits = getPageBits(System.getProperty("perst.page.size"));
+
+    /**
+     * Log2 of page size. Page size is specified by "perst.page.size" system property 
+     * (power of two from 4Kb till 32Kb), default page size is 4Kb.
+     */
+    public static final int pageBits = specifiedPageBits >= 0 ? specifiedPageBits : defaultPageBits;
     public static final int pageSize = 1 << pageBits;
 
+    static int getPageBits(String size) { 
+        if (size == null) { 
+            return defaultPageBits;
+        }
+        try { 
+            return getPageBits(Integer.parseInt(size));
+        } catch (NumberFormatException x) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Get log2 of page size
+     * @return log2 of page size or -1 if specified size is not valid page size
+     */
+    static int getPageBits(long size) { 
+        for (int bits = minPageBits; bits <= maxPageBits; bits++) { 
+            if (size == 1L << bits) { 
+                return bits;
+            }
+        }
+        return -1;
+    }
+
     public int compareTo(Object o) 
     { 
         long po = ((Page)o).offs;
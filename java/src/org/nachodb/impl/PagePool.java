@@ -2,21 +2,39 @@ package org.nachodb.impl;
 import  org.nachodb.*;
 
 class PagePool { 
-    LRU     lru;
+    PageReplacementPolicy policy;
+    String  replacementPolicy;
     Page    freePages;
     Page    hashTable[];
     int     poolSize;
     boolean autoExtended;
     IFile   file;
+    OffHeapPageCache offHeapCache; // second level cache of pages evicted from the pool
+    int     nPartitions = 1; // number of partitions of partitioned pool this pool belongs to
 
     int     nDirtyPages;
     Page    dirtyPages[];
     
     boolean flushing;
 
+    DirtyPageWriter writer;
+    CommitBarrier   barrier = new CommitBarrier(); // prevents writes of pages while asynchronous commit is not durable
+    int     dirtyHighWatermark; // percent of dirty pages in the pool activating background writer (0 - no writer)
+    int     dirtyLowWatermark;  // percent of dirty pages in the pool at which background writer stops
+
     static final int INFINITE_POOL_INITIAL_SIZE = 8;
 
+    /**
+     * Maximal size of sequence of adjacent dirty pages written by one gathering write operation
+     */
+    static final int MAX_FLUSH_RUN_SIZE = 4*1024*1024;
+
     PagePool(int poolSize) { 
+        this(poolSize, null);
+    }
+
+    PagePool(int poolSize, String replacementPolicy) { 
+        this.replacementPolicy = replacementPolicy;
         if (poolSize == 0) { 
             autoExtended = true;
             poolSize = INFINITE_POOL_INITIAL_SIZE;
@@ -24,18 +42,19 @@ class PagePool {
         this.poolSize = poolSize;
     }
 
-    final Page find(long addr, int state) {     
+    Page find(long addr, int state) {     
         //Assert.that((addr & (Page.pageSize-1)) == 0);
         Page pg;
+        boolean raw;
         int pageNo = (int)(addr >>> Page.pageBits);
-        int hashCode = pageNo % poolSize;
+        int hashCode = (pageNo / nPartitions) % poolSize;
 
         synchronized (this) {           
             for (pg = hashTable[hashCode]; pg != null; pg = pg.collisionChain) 
             { 
                 if (pg.offs == addr) {
                     if (pg.accessCount++ == 0) { 
-                        pg.unlink();
+                        policy.fix(pg);
                     }
                     break;
                 }
@@ -55,11 +74,11 @@ class PagePool {
                     pg = new Page();
                     hashCode = pageNo;
                 } else { 
-                    Assert.that("unfixed page available", lru.prev != lru);
-                    pg = (Page)lru.prev;
-                    pg.unlink();
+                    pg = policy.evict();
+                    Assert.that("unfixed page available", pg != null);
                     synchronized (pg) { 
                         if ((pg.state & Page.psDirty) != 0) { 
+                            barrier.pass();
                             pg.state = 0;
                             file.write(pg.offs, pg.data);
                             if (!flushing) { 
@@ -67,8 +86,11 @@ class PagePool {
                                 dirtyPages[pg.writeQueueIndex].writeQueueIndex = pg.writeQueueIndex;
                             }
                         }
+                        if (offHeapCache != null) { 
+                            offHeapCache.store(pg.offs, pg.data);
+                        }
                     }
-                    int h = (int)(pg.offs >> Page.pageBits) % poolSize;
+                    int h = ((int)(pg.offs >> Page.pageBits) / nPartitions) % poolSize;
                     Page curr = hashTable[h], prev = null;
                     while (curr != pg) { 
                         prev = curr;
@@ -83,6 +105,7 @@ class PagePool {
                 pg.accessCount = 1;
                 pg.offs = addr;
                 pg.state = Page.psRaw;
+                policy.load(pg);
                 pg.collisionChain = hashTable[hashCode];
                 hashTable[hashCode] = pg;
             }
@@ -97,14 +120,29 @@ class PagePool {
                 dirtyPages[nDirtyPages] = pg;
                 pg.writeQueueIndex = nDirtyPages++;
                 pg.state |= Page.psDirty;
+                if (writer != null && (long)nDirtyPages*100 > (long)poolSize*dirtyHighWatermark) { 
+                    writer.activate();
+                }
             }
-            if ((pg.state & Page.psRaw) != 0) {
-                if (file.read(pg.offs, pg.data) < Page.pageSize) {
-                    for (int i = 0; i < Page.pageSize; i++) { 
-                        pg.data[i] = 0;
+            raw = (pg.state & Page.psRaw) != 0;
+        }
+        if (raw) {
+            // Page is read outside pool monitor, so misses of different pages can be 
+            // served in parallel. Page can not be evicted while it is fixed, and 
+            // other threads fixing the same page wait on its monitor until it is loaded.
+            synchronized (pg) { 
+                if ((pg.state & Page.psRaw) != 0) {
+                    if ((offHeapCache == null || !offHeapCache.load(pg.offs, pg.data))
+                        && file.read(pg.offs, pg.data) < Page.pageSize) 
+                    {
+                        for (int i = 0; i < Page.pageSize; i++) { 
+                            pg.data[i] = 0;
+                        }
+                    }
+                    synchronized (this) { 
+                        pg.state &= ~Page.psRaw;
                     }
                 }
-                pg.state &= ~Page.psRaw;
             }           
         }
         return pg;
@@ -163,13 +201,13 @@ class PagePool {
         }
     }
 
-    final void open(IFile f) 
+    void open(IFile f) 
     {
         file = f;
         hashTable = new Page[poolSize];
         dirtyPages = new Page[poolSize];
         nDirtyPages = 0;
-        lru = new LRU();
+        policy = createReplacementPolicy();
         freePages = null;
         if (!autoExtended) { 
             for (int i = poolSize; --i >= 0; ) { 
@@ -178,24 +216,48 @@ class PagePool {
                 freePages = pg;
             }
         }
+        if (dirtyHighWatermark > 0 && writer == null) { 
+            writer = new DirtyPageWriter(this, dirtyHighWatermark, dirtyLowWatermark);
+        }
     }
 
-    final synchronized void close() {
-        file.close();
+    PageReplacementPolicy createReplacementPolicy() { 
+        if ("clock".equals(replacementPolicy)) { 
+            return new ClockReplacementPolicy();
+        }
+        if ("2q".equals(replacementPolicy)) { 
+            return new TwoQueueReplacementPolicy(poolSize);
+        }
+        return new LruReplacementPolicy();
+    }
+
+    void close() {
+        if (writer != null) { 
+            writer.terminate();
+        }
+        synchronized (this) { 
+            file.close();
+            release();
+        }
+    }
+
+    final synchronized void release() {
         hashTable = null;
         dirtyPages = null;
-        lru = null;
+        policy = null;
+        offHeapCache = null;
+        writer = null;
         freePages = null;
     }
 
-    final synchronized void unfix(Page pg) { 
+    synchronized void unfix(Page pg) { 
         Assert.that(pg.accessCount > 0);
         if (--pg.accessCount == 0) { 
-            lru.link(pg);
+            policy.unfix(pg);
         }
     }
 
-    final synchronized void modify(Page pg) { 
+    synchronized void modify(Page pg) { 
         Assert.that(pg.accessCount > 0);
         if ((pg.state & Page.psDirty) == 0) { 
             Assert.that(!flushing);
@@ -207,6 +269,9 @@ class PagePool {
             }
             dirtyPages[nDirtyPages] = pg;
             pg.writeQueueIndex = nDirtyPages++;
+            if (writer != null && (long)nDirtyPages*100 > (long)poolSize*dirtyHighWatermark) { 
+                writer.activate();
+            }
         }
     }
     
@@ -262,22 +327,185 @@ class PagePool {
     }
 
     void flush() { 
+        flush(false);
+    }
+
+    /**
+     * Write dirty pages to the file
+     * @param async if <code>false</code> then file is synced, otherwise file is not synced 
+     * and commit barrier is locked: no more pages can be written until the commit thread 
+     * makes written pages durable and unlocks the barrier
+     */
+    void flush(boolean async) { 
+        if (writer != null) { 
+            synchronized (writer.writeLock) { 
+                flushDirtyPages(async);
+            }
+        } else { 
+            flushDirtyPages(async);
+        }
+    }
+
+    void flushDirtyPages(boolean async) { 
+        barrier.pass();
         synchronized (this) { 
             flushing = true;
             java.util.Arrays.sort(dirtyPages, 0, nDirtyPages); 
         }
-        for (int i = 0; i < nDirtyPages; i++) { 
-            Page pg = dirtyPages[i];
+        writeDirtyPages(dirtyPages, nDirtyPages);
+        if (async) { 
+            barrier.lock();
+        } else { 
+            file.sync();
+        }
+        nDirtyPages = 0;
+        flushing = false;
+    }
+
+    /**
+     * Get offsets of pages loaded in the pool
+     */
+    synchronized long[] getResidentPages() { 
+        long[] pages = new long[poolSize];
+        int n = 0;
+        for (int i = 0; i < hashTable.length; i++) { 
+            for (Page pg = hashTable[i]; pg != null; pg = pg.collisionChain) { 
+                if ((pg.state & Page.psRaw) == 0) { 
+                    if (n == pages.length) { 
+                        long[] newPages = new long[n*2];
+                        System.arraycopy(pages, 0, newPages, 0, n);
+                        pages = newPages;
+                    }
+                    pages[n++] = pg.offs;
+                }
+            }
+        }
+        long[] result = new long[n];
+        System.arraycopy(pages, 0, result, 0, n);
+        return result;
+    }
+
+    int getDirtyPageCount() { 
+        return nDirtyPages;
+    }
+
+    /**
+     * Write dirty pages which are not used now to the file (used by background writer).
+     * Written pages remain in the pool as clean pages.
+     * @param maxPages maximal number of pages to be written
+     * @return number of written pages
+     */
+    int writeBack(int maxPages) { 
+        Page[] pages;
+        int n = 0;
+        barrier.pass();
+        synchronized (this) { 
+            if (flushing || hashTable == null) { 
+                return 0;
+            }
+            pages = new Page[maxPages < nDirtyPages ? maxPages : nDirtyPages];
+            for (int i = 0; i < nDirtyPages && n < pages.length;) { 
+                Page pg = dirtyPages[i];
+                if (pg.accessCount == 0) { 
+                    // page is pinned without access to the replacement policy: write-back is not page access
+                    pg.state = (pg.state & ~Page.psDirty) | Page.psPinned;
+                    dirtyPages[i] = dirtyPages[--nDirtyPages];
+                    dirtyPages[i].writeQueueIndex = i;
+                    pages[n++] = pg;
+                } else { 
+                    i += 1;
+                }
+            }
+        }
+        java.util.Arrays.sort(pages, 0, n);
+        for (int i = 0; i < n; i++) { 
+            Page pg = pages[i];
             synchronized (pg) { 
-                if ((pg.state & Page.psDirty) != 0) { 
-                    file.write(pg.offs, pg.data);
-                    pg.state &= ~Page.psDirty;
+                file.write(pg.offs, pg.data);
+            }
+        }
+        synchronized (this) { 
+            for (int i = 0; i < n; i++) { 
+                pages[i].state &= ~Page.psPinned;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Get pool containing the page (for partitioned pool - partition to which page belongs)
+     */
+    PagePool getPartition(Page pg) { 
+        return this;
+    }
+
+    /**
+     * Write dirty pages sorted by their offsets in the file
+     */
+    final void writeDirtyPages(Page[] pages, int nPages) { 
+        if (file instanceof IGatheringFile) { 
+            flushRuns((IGatheringFile)file, pages, nPages);
+        } else { 
+            for (int i = 0; i < nPages; i++) { 
+                Page pg = pages[i];
+                synchronized (pg) { 
+                    if ((pg.state & Page.psDirty) != 0) { 
+                        file.write(pg.offs, pg.data);
+                        pg.state &= ~Page.psDirty;
+                    }
                 }
             }
         }           
-        file.sync();
-        nDirtyPages = 0;
-        flushing = false;
+    }
+
+    /**
+     * Write sorted dirty pages merging sequences of adjacent pages.
+     * Pages of the sequence are pinned in the pool, so them can not be 
+     * evicted and reused until them are written to the file. Pinning doesn't 
+     * involve replacement policy, so written pages are not considered as recently used.
+     */
+    private void flushRuns(IGatheringFile file, Page[] pages, int nPages) { 
+        int maxRun = MAX_FLUSH_RUN_SIZE/Page.pageSize;
+        if (!autoExtended && maxRun > poolSize/4) { 
+            // leave enough unpinned pages for concurrent readers
+            maxRun = poolSize/4 > 0 ? poolSize/4 : 1;
+        }
+        Page[] run = new Page[maxRun];
+        byte[][] bufs = new byte[maxRun][];
+        int i = 0;
+        while (i < nPages) { 
+            int n = 0;
+            long next = 0;
+            for (; i < nPages && n < maxRun; i++) { 
+                Page pg = pages[i];
+                synchronized (getPartition(pg)) { 
+                    if ((pg.state & Page.psDirty) == 0) { 
+                        continue; // page was already written by eviction
+                    }
+                    if (n != 0 && pg.offs != next) { 
+                        break;
+                    }
+                    pg.state |= Page.psPinned;
+                }
+                run[n] = pg;
+                bufs[n] = pg.data;
+                n += 1;
+                next = pg.offs + Page.pageSize;
+            }
+            if (n == 1) { 
+                file.write(run[0].offs, bufs[0]);
+            } else if (n > 1) { 
+                file.write(run[0].offs, bufs, n);
+            }
+            for (int j = 0; j < n; j++) { 
+                PagePool partition = getPartition(run[j]);
+                synchronized (partition) { 
+                    run[j].state &= ~(Page.psDirty|Page.psPinned);
+                }
+                run[j] = null;
+                bufs[j] = null;
+            }
+        }
     }
 }
 
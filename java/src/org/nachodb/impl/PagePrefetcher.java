@@ -0,0 +1,85 @@
+package org.nachodb.impl;
+import  org.nachodb.*;
+
+/**
+ * Loader of set of pages in the page pool.
+ * Pages are sorted by their offsets in the file and split into several contiguous ranges,
+ * each range is loaded by separate thread reading pages sequentially.
+ */
+class PagePrefetcher { 
+    PagePool pool;
+    long[]   pages;
+    Loader[] loaders;
+    volatile boolean stopped;
+
+    /**
+     * Default number of threads loading pages
+     */
+    static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Minimal number of pages loaded by one thread
+     */
+    static final int MIN_PAGES_PER_THREAD = 256;
+
+    class Loader extends Thread { 
+        int from;
+        int till;
+
+        Loader(int from, int till) { 
+            this.from = from;
+            this.till = till;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() { 
+            try { 
+                for (int i = from; i < till && !stopped; i++) { 
+                    pool.unfix(pool.find(pages[i], 0));
+                }
+            } catch (StorageError x) { 
+                // prefetch is just optimization, errors will be reported on real access to the page
+            }
+        }
+    }
+
+    /**
+     * Start loading of the pages
+     * @param pool page pool
+     * @param pages offsets of the pages (array is sorted by this method)
+     * @param nPages number of pages to be loaded
+     * @param nThreads number of loader threads
+     */
+    PagePrefetcher(PagePool pool, long[] pages, int nPages, int nThreads) { 
+        this.pool = pool;
+        this.pages = pages;
+        java.util.Arrays.sort(pages, 0, nPages);
+        if (nThreads > (nPages + MIN_PAGES_PER_THREAD - 1) / MIN_PAGES_PER_THREAD) { 
+            nThreads = (nPages + MIN_PAGES_PER_THREAD - 1) / MIN_PAGES_PER_THREAD;
+        }
+        loaders = new Loader[nThreads];
+        for (int i = 0; i < nThreads; i++) { 
+            loaders[i] = new Loader((int)((long)nPages*i/nThreads), (int)((long)nPages*(i+1)/nThreads));
+        }
+    }
+
+    /**
+     * Wait until all pages are loaded
+     */
+    void join() { 
+        for (int i = 0; i < loaders.length; i++) { 
+            try { 
+                loaders[i].join();
+            } catch (InterruptedException x) {}
+        }
+    }
+
+    /**
+     * Stop loading of pages and wait termination of loader threads
+     */
+    void stop() { 
+        stopped = true;
+        join();
+    }
+}
@@ -0,0 +1,30 @@
+package org.nachodb.impl;
+
+/**
+ * Policy used by page pool to select victim page when there are no free pages in the pool.
+ * All methods are invoked by page pool while holding pool lock.
+ */
+interface PageReplacementPolicy { 
+    /**
+     * Page was loaded in the pool (page access counter is 1)
+     */
+    void load(Page pg);
+
+    /**
+     * Resident page which was not used is accessed again (page access counter is changed from 0 to 1)
+     */
+    void fix(Page pg);
+
+    /**
+     * Page is not used any more (page access counter is changed to 0)
+     */
+    void unfix(Page pg);
+
+    /**
+     * Select page to be evicted from the pool and exclude it from the policy lists.
+     * Pages pinned while them are written to the file (<code>Page.psPinned</code>) are skipped:
+     * pinning doesn't change access counter and position of the page in the policy lists.
+     * @return unused page with zero access counter or <code>null</code> if all pages are in use
+     */
+    Page evict();
+}
@@ -0,0 +1,141 @@
+package org.nachodb.impl;
+import  org.nachodb.*;
+
+/**
+ * Page pool split into several independently locked partitions.
+ * Page is assigned to the partition by its number, each partition has its own hash table,
+ * page replacement policy lists, free list and list of dirty pages, so threads accessing pages from different
+ * partitions are not blocked by each other.
+ */
+class PartitionedPagePool extends PagePool {
+    PagePool partitions[];
+
+    PartitionedPagePool(int poolSize, int nPartitions, String replacementPolicy) {
+        super(poolSize, replacementPolicy);
+        partitions = new PagePool[nPartitions];
+        int partitionSize = poolSize / nPartitions;
+        if (partitionSize == 0) { 
+            partitionSize = 1;
+        }
+        for (int i = 0; i < nPartitions; i++) { 
+            partitions[i] = new PagePool(partitionSize, replacementPolicy);
+            partitions[i].nPartitions = nPartitions;
+        }
+    }
+
+    final PagePool getPartition(long addr) {
+        return partitions[(int)(addr >>> Page.pageBits) % partitions.length];
+    }
+
+    PagePool getPartition(Page pg) {
+        return getPartition(pg.offs);
+    }
+
+    Page find(long addr, int state) {
+        return getPartition(addr).find(addr, state);
+    }
+
+    void unfix(Page pg) {
+        getPartition(pg.offs).unfix(pg);
+    }
+
+    void modify(Page pg) {
+        getPartition(pg.offs).modify(pg);
+    }
+
+    void open(IFile f)
+    {
+        file = f;
+        if (dirtyHighWatermark > 0) { 
+            writer = new DirtyPageWriter(this, dirtyHighWatermark, dirtyLowWatermark);
+        }
+        for (int i = 0; i < partitions.length; i++) { 
+            partitions[i].writer = writer;
+            partitions[i].barrier = barrier;
+            partitions[i].dirtyHighWatermark = dirtyHighWatermark;
+            partitions[i].offHeapCache = offHeapCache;
+            partitions[i].open(f);
+        }
+    }
+
+    void close() {
+        if (writer != null) { 
+            writer.terminate();
+        }
+        synchronized (this) { 
+            file.close();
+            for (int i = 0; i < partitions.length; i++) { 
+                partitions[i].release();
+            }
+            offHeapCache = null;
+            writer = null;
+        }
+    }
+
+    void flushDirtyPages(boolean async) {
+        barrier.pass();
+        Page[] pages = new Page[poolSize];
+        int nPages = 0;
+        for (int i = 0; i < partitions.length; i++) { 
+            PagePool partition = partitions[i];
+            synchronized (partition) { 
+                partition.flushing = true;
+                if (nPages + partition.nDirtyPages > pages.length) { 
+                    int newSize = pages.length*2 > nPages + partition.nDirtyPages 
+                        ? pages.length*2 : nPages + partition.nDirtyPages;
+                    Page[] newPages = new Page[newSize];
+                    System.arraycopy(pages, 0, newPages, 0, nPages);
+                    pages = newPages;
+                }
+                System.arraycopy(partition.dirtyPages, 0, pages, nPages, partition.nDirtyPages);
+                nPages += partition.nDirtyPages;
+            }
+        }
+        java.util.Arrays.sort(pages, 0, nPages);
+        writeDirtyPages(pages, nPages);
+        if (async) { 
+            barrier.lock();
+        } else { 
+            file.sync();
+        }
+        for (int i = 0; i < partitions.length; i++) { 
+            PagePool partition = partitions[i];
+            synchronized (partition) { 
+                partition.nDirtyPages = 0;
+                partition.flushing = false;
+            }
+        }
+    }
+
+    long[] getResidentPages() { 
+        long[][] partitionPages = new long[partitions.length][];
+        int nPages = 0;
+        for (int i = 0; i < partitions.length; i++) { 
+            partitionPages[i] = partitions[i].getResidentPages();
+            nPages += partitionPages[i].length;
+        }
+        long[] pages = new long[nPages];
+        nPages = 0;
+        for (int i = 0; i < partitions.length; i++) { 
+            System.arraycopy(partitionPages[i], 0, pages, nPages, partitionPages[i].length);
+            nPages += partitionPages[i].length;
+        }
+        return pages;
+    }
+
+    int getDirtyPageCount() { 
+        int nPages = 0;
+        for (int i = 0; i < partitions.length; i++) { 
+            nPages += partitions[i].nDirtyPages;
+        }
+        return nPages;
+    }
+
+    int writeBack(int maxPages) { 
+        int n = 0;
+        for (int i = 0; i < partitions.length && n < maxPages; i++) { 
+            n += partitions[i].writeBack(maxPages - n);
+        }
+        return n;
+    }
+}
@@ -3,7 +3,7 @@ import  org.nachodb.*;
 
 public class Rc4File implements IFile 
 { 
-    public void write(long pos, byte[] buf) 
+    public synchronized void write(long pos, byte[] buf) 
     {
         if (pos > length) { 
             if (zeroPage == null) { 
@@ -21,7 +21,7 @@ public class Rc4File implements IFile
         file.write(pos, cipherBuf);
     }
 
-    public int read(long pos, byte[] buf) 
+    public synchronized int read(long pos, byte[] buf) 
     { 
         if (pos < length) { 
             int rc = file.read(pos, buf);
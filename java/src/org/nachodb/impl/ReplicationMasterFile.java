@@ -103,7 +103,7 @@ public class ReplicationMasterFile implements IFile
     }
 
 
-    public void write(long pos, byte[] buf) {
+    public synchronized void write(long pos, byte[] buf) {
         for (int i = 0; i < out.length; i++) { 
             while (out[i] != null) {                 
                 try { 
@@ -34,7 +34,7 @@ public class ReplicationSlaveStorageImpl extends StorageImpl implements Replicat
         commit = new Object();
         listening = true;
         connect();
-        pool = new PagePool(pagePoolSize/Page.pageSize);
+        pool = createPagePool(pagePoolSize);
         pool.open(file);
         thread = new Thread(this);
         thread.start();
@@ -60,6 +60,7 @@ public class ReplicationSlaveStorageImpl extends StorageImpl implements Replicat
         Page pg = pool.getPage(0);
         header.unpack(pg.data);
         pool.unfix(pg);
+        compactRecords = header.compactRecords;
         currIndex = 1-header.curr;
         currIndexSize = header.root[1-currIndex].indexUsed;
         committedIndexSize = currIndexSize;
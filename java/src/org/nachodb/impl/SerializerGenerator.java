@@ -0,0 +1,486 @@
+package org.nachodb.impl;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Generator of class serializers.
+ * For each class descriptor it produces bytecode of <code>ClassSerializer</code> subclass with pack and unpack
+ * methods containing straight-line code for all fields of the class: values of boolean, integer and floating
+ * point fields are accessed directly by <code>sun.misc.Unsafe</code> using field offsets embedded in the code
+ * (without reflection, boxing and switch on field type), and ranges of fields of other types are passed
+ * to <code>StorageImpl.packFields</code> and <code>StorageImpl.unpackFields</code> methods.
+ * If <code>sun.misc.Unsafe</code> is not available, serializers are not generated.
+ */
+class SerializerGenerator {
+    /**
+     * Generate serializer for the class
+     * @param desc descriptor of the class
+     * @return generated serializer or <code>null</code> if class has no fields which can be accessed directly
+     * or serializers can not be generated in this environment
+     * @exception Exception if generation of serializer for the class is failed
+     */
+    static ClassSerializer generate(ClassDescriptor desc) throws Exception {
+        if (!initialized) { 
+            initialize();
+        }
+        if (objectFieldOffset == null) { 
+            return null;
+        }
+        ClassDescriptor.FieldDescriptor[] all = desc.allFields;
+        long[] offsets = new long[all.length];
+        boolean direct = false;
+        for (int i = 0; i < all.length; i++) { 
+            Field f = all[i].field;
+            if (f != null && all[i].type <= ClassDescriptor.tpDouble && f.getType() == primitiveClasses[all[i].type]) { 
+                offsets[i] = ((Long)objectFieldOffset.invoke(ClassSerializer.unsafe, new Object[]{f})).longValue();
+                direct = true;
+            } else { 
+                offsets[i] = -1;
+            }
+        }
+        if (!direct) { 
+            return null;
+        }
+        String name;
+        synchronized (SerializerGenerator.class) { 
+            name = "org.nachodb.impl.GeneratedSerializer" + (++nGeneratedClasses);
+        }
+        byte[] code = new SerializerGenerator(name, all, offsets).generateClass();
+        ClassSerializer serializer = (ClassSerializer)loader.define(name, code).newInstance();
+        serializer.desc = desc;
+        return serializer;
+    }
+
+    private static synchronized void initialize() {
+        if (!initialized) { 
+            try { 
+                Class unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                ClassSerializer.unsafe = theUnsafe.get(null);
+                loader = new SerializerLoader(ClassSerializer.class.getClassLoader());
+                objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", new Class[]{Field.class});
+            } catch (Throwable x) { 
+                objectFieldOffset = null;
+            }
+            initialized = true;
+        }
+    }
+
+    static class SerializerLoader extends ClassLoader {
+        SerializerLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        synchronized Class define(String name, byte[] code) {
+            return defineClass(name, code, 0, code.length);
+        }
+    }
+
+    private SerializerGenerator(String className, ClassDescriptor.FieldDescriptor[] fields, long[] offsets) {
+        this.className = className.replace('.', '/');
+        this.fields = fields;
+        this.offsets = offsets;
+    }
+
+    private byte[] generateClass() {
+        int thisClass = classRef(className);
+        int superClass = classRef(serializerClass);
+        int codeAttr = utf8("Code");
+
+        ByteBuffer methods = new ByteBuffer();
+        int nMethods = 0;
+
+        // constructor
+        code = new ByteBuffer();
+        codeSize = 0;
+        emit(ALOAD_0);
+        emit(INVOKESPECIAL);
+        emit2(methodRef(serializerClass, "<init>", "()V"));
+        emit(RETURN);
+        addMethod(methods, ACC_PUBLIC, "<init>", "()V", codeAttr, 1, 1);
+        nMethods += 1;
+
+        generatePack();
+        addMethod(methods, ACC_PUBLIC, "pack",
+                  "(L" + storageClass + ";Ljava/lang/Object;IL" + bufferClass + ";L" + persistentInterface + ";)I",
+                  codeAttr, 8, 6);
+        nMethods += 1;
+
+        generateUnpack();
+        addMethod(methods, ACC_PUBLIC, "unpack",
+                  "(L" + storageClass + ";Ljava/lang/Object;Z[BIL" + persistentInterface + ";)I",
+                  codeAttr, 9, 7);
+        nMethods += 1;
+
+        ByteBuffer cls = new ByteBuffer();
+        int offs = 0;
+        offs = put4(cls, offs, 0xCAFEBABE);
+        offs = put2(cls, offs, 0);  // minor version
+        offs = put2(cls, offs, 48); // major version: Java 1.4
+        offs = put2(cls, offs, nConstants);
+        offs = putBytes(cls, offs, constants.arr, constantsSize);
+        offs = put2(cls, offs, ACC_PUBLIC|ACC_FINAL|ACC_SUPER);
+        offs = put2(cls, offs, thisClass);
+        offs = put2(cls, offs, superClass);
+        offs = put2(cls, offs, 0); // interfaces
+        offs = put2(cls, offs, 0); // fields
+        offs = put2(cls, offs, nMethods);
+        offs = putBytes(cls, offs, methods.arr, methodsSize);
+        offs = put2(cls, offs, 0); // attributes
+        byte[] result = new byte[offs];
+        System.arraycopy(cls.arr, 0, result, 0, offs);
+        return result;
+    }
+
+    /**
+     * Generate body of <code>int pack(StorageImpl db, Object obj, int offs, ByteBuffer buf, IPersistent po)</code>
+     */
+    private void generatePack() {
+        code = new ByteBuffer();
+        codeSize = 0;
+        int i = 0, n = fields.length;
+        while (i < n) { 
+            if (offsets[i] < 0) { 
+                int from = i;
+                while (++i < n && offsets[i] < 0);
+                // offs = packFields(db, obj, from, i, offs, buf, po);
+                emit(ALOAD_0);
+                emit(ALOAD_1);
+                emit(ALOAD_2);
+                emitInt(from);
+                emitInt(i);
+                emit(ILOAD_3);
+                emit(ALOAD, 4);
+                emit(ALOAD, 5);
+                emit(INVOKEVIRTUAL);
+                emit2(methodRef(serializerClass, "packFields",
+                                "(L" + storageClass + ";Ljava/lang/Object;IIIL" + bufferClass + ";L" + persistentInterface + ";)I"));
+                emit(ISTORE_3);
+            } else { 
+                // offs = packT(buf, offs, unsafe.getT(obj, offset));
+                String sig = typeSignature[fields[i].type];
+                emit(ALOAD, 4);
+                emit(ILOAD_3);
+                emitUnsafe();
+                emit(ALOAD_2);
+                emit(LDC2_W);
+                emit2(longConstant(offsets[i]));
+                emit(INVOKEVIRTUAL);
+                emit2(methodRef(unsafeClass, "get" + typeName[fields[i].type], "(Ljava/lang/Object;J)" + sig));
+                emit(INVOKESTATIC);
+                emit2(methodRef(serializerClass, "pack" + typeName[fields[i].type], "(L" + bufferClass + ";I" + sig + ")I"));
+                emit(ISTORE_3);
+                i += 1;
+            }
+        }
+        emit(ILOAD_3);
+        emit(IRETURN);
+    }
+
+    /**
+     * Generate body of <code>int unpack(StorageImpl db, Object obj, boolean recursiveLoading, byte[] body, int offs, IPersistent po)</code>
+     */
+    private void generateUnpack() {
+        code = new ByteBuffer();
+        codeSize = 0;
+        int i = 0, n = fields.length;
+        while (i < n) { 
+            if (offsets[i] < 0) { 
+                int from = i;
+                while (++i < n && offsets[i] < 0);
+                // offs = unpackFields(db, obj, from, i, recursiveLoading, body, offs, po);
+                emit(ALOAD_0);
+                emit(ALOAD_1);
+                emit(ALOAD_2);
+                emitInt(from);
+                emitInt(i);
+                emit(ILOAD_3);
+                emit(ALOAD, 4);
+                emit(ILOAD, 5);
+                emit(ALOAD, 6);
+                emit(INVOKEVIRTUAL);
+                emit2(methodRef(serializerClass, "unpackFields",
+                                "(L" + storageClass + ";Ljava/lang/Object;IIZ[BIL" + persistentInterface + ";)I"));
+                emit(ISTORE, 5);
+            } else { 
+                // unsafe.putT(obj, offset, <value of type T unpacked from body[offs]>);
+                int type = fields[i].type;
+                emitUnsafe();
+                emit(ALOAD_2);
+                emit(LDC2_W);
+                emit2(longConstant(offsets[i]));
+                switch (type) { 
+                  case ClassDescriptor.tpBoolean:
+                    emit(ALOAD, 4);
+                    emit(ILOAD, 5);
+                    emit(INVOKESTATIC);
+                    emit2(methodRef(serializerClass, "unpackBoolean", "([BI)Z"));
+                    break;
+                  case ClassDescriptor.tpByte:
+                    emit(ALOAD, 4);
+                    emit(ILOAD, 5);
+                    emit(BALOAD);
+                    break;
+                  case ClassDescriptor.tpChar:
+                  case ClassDescriptor.tpShort:
+                    emit(ALOAD, 4);
+                    emit(ILOAD, 5);
+                    emit(INVOKESTATIC);
+                    emit2(methodRef(bytesClass, "unpack2", "([BI)S"));
+                    if (type == ClassDescriptor.tpChar) { 
+                        emit(I2C);
+                    }
+                    break;
+                  case ClassDescriptor.tpInt:
+                  case ClassDescriptor.tpFloat:
+                    emit(ALOAD, 4);
+                    emit(ILOAD, 5);
+                    emit(INVOKESTATIC);
+                    emit2(methodRef(bytesClass, "unpack4", "([BI)I"));
+                    if (type == ClassDescriptor.tpFloat) { 
+                        emit(INVOKESTATIC);
+                        emit2(methodRef("java/lang/Float", "intBitsToFloat", "(I)F"));
+                    }
+                    break;
+                  case ClassDescriptor.tpLong:
+                  case ClassDescriptor.tpDouble:
+                    emit(ALOAD, 4);
+                    emit(ILOAD, 5);
+                    emit(INVOKESTATIC);
+                    emit2(methodRef(bytesClass, "unpack8", "([BI)J"));
+                    if (type == ClassDescriptor.tpDouble) { 
+                        emit(INVOKESTATIC);
+                        emit2(methodRef("java/lang/Double", "longBitsToDouble", "(J)D"));
+                    }
+                    break;
+                }
+                emit(INVOKEVIRTUAL);
+                emit2(methodRef(unsafeClass, "put" + typeName[type], "(Ljava/lang/Object;J" + typeSignature[type] + ")V"));
+                emit(IINC, 5);
+                emit(ClassDescriptor.sizeof[type]);
+                i += 1;
+            }
+        }
+        emit(ILOAD, 5);
+        emit(IRETURN);
+    }
+
+    private void emitUnsafe() {
+        emit(GETSTATIC);
+        emit2(fieldRef(serializerClass, "unsafe", "Ljava/lang/Object;"));
+        emit(CHECKCAST);
+        emit2(classRef(unsafeClass));
+    }
+
+    private void emitInt(int val) {
+        if (val <= Short.MAX_VALUE) { 
+            emit(SIPUSH);
+            emit2(val);
+        } else { 
+            emit(LDC_W);
+            emit2(intConstant(val));
+        }
+    }
+
+    private void emit(int opcode) {
+        codeSize = put1(code, codeSize, opcode);
+    }
+
+    private void emit(int opcode, int operand) {
+        codeSize = put1(code, codeSize, opcode);
+        codeSize = put1(code, codeSize, operand);
+    }
+
+    private void emit2(int val) {
+        codeSize = put2(code, codeSize, val);
+    }
+
+    private void addMethod(ByteBuffer methods, int flags, String name, String descriptor, int codeAttr,
+                           int maxStack, int maxLocals)
+    {
+        int offs = methodsSize;
+        offs = put2(methods, offs, flags);
+        offs = put2(methods, offs, utf8(name));
+        offs = put2(methods, offs, utf8(descriptor));
+        offs = put2(methods, offs, 1); // attributes
+        offs = put2(methods, offs, codeAttr);
+        offs = put4(methods, offs, 12 + codeSize);
+        offs = put2(methods, offs, maxStack);
+        offs = put2(methods, offs, maxLocals);
+        offs = put4(methods, offs, codeSize);
+        offs = putBytes(methods, offs, code.arr, codeSize);
+        offs = put2(methods, offs, 0); // exception table
+        offs = put2(methods, offs, 0); // attributes
+        methodsSize = offs;
+    }
+
+    private int addConstant(String key, byte[] value, int nSlots) {
+        Integer index = (Integer)constantMap.get(key);
+        if (index == null) { 
+            index = new Integer(nConstants);
+            constantsSize = putBytes(constants, constantsSize, value, value.length);
+            nConstants += nSlots;
+            constantMap.put(key, index);
+        }
+        return index.intValue();
+    }
+
+    private int utf8(String str) {
+        byte[] chars;
+        try { 
+            chars = str.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException x) { 
+            throw new Error("UTF-8 encoding is not supported");
+        }
+        byte[] value = new byte[3 + chars.length];
+        value[0] = CONSTANT_Utf8;
+        Bytes.pack2(value, 1, (short)chars.length);
+        System.arraycopy(chars, 0, value, 3, chars.length);
+        return addConstant("U" + str, value, 1);
+    }
+
+    private int classRef(String name) {
+        int nameIndex = utf8(name);
+        byte[] value = new byte[3];
+        value[0] = CONSTANT_Class;
+        Bytes.pack2(value, 1, (short)nameIndex);
+        return addConstant("C" + name, value, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descIndex = utf8(descriptor);
+        byte[] value = new byte[5];
+        value[0] = CONSTANT_NameAndType;
+        Bytes.pack2(value, 1, (short)nameIndex);
+        Bytes.pack2(value, 3, (short)descIndex);
+        return addConstant("N" + name + ":" + descriptor, value, 1);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int classIndex = classRef(owner);
+        int natIndex = nameAndType(name, descriptor);
+        byte[] value = new byte[5];
+        value[0] = (byte)tag;
+        Bytes.pack2(value, 1, (short)classIndex);
+        Bytes.pack2(value, 3, (short)natIndex);
+        return addConstant(tag + owner + "." + name + ":" + descriptor, value, 1);
+    }
+
+    private int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_Methodref, owner, name, descriptor);
+    }
+
+    private int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_Fieldref, owner, name, descriptor);
+    }
+
+    private int intConstant(int val) {
+        byte[] value = new byte[5];
+        value[0] = CONSTANT_Integer;
+        Bytes.pack4(value, 1, val);
+        return addConstant("I" + val, value, 1);
+    }
+
+    private int longConstant(long val) {
+        byte[] value = new byte[9];
+        value[0] = CONSTANT_Long;
+        Bytes.pack8(value, 1, val);
+        return addConstant("J" + val, value, 2);
+    }
+
+    private static int put1(ByteBuffer buf, int offs, int val) {
+        buf.extend(offs + 1);
+        buf.arr[offs] = (byte)val;
+        return offs + 1;
+    }
+
+    private static int put2(ByteBuffer buf, int offs, int val) {
+        buf.extend(offs + 2);
+        Bytes.pack2(buf.arr, offs, (short)val);
+        return offs + 2;
+    }
+
+    private static int put4(ByteBuffer buf, int offs, int val) {
+        buf.extend(offs + 4);
+        Bytes.pack4(buf.arr, offs, val);
+        return offs + 4;
+    }
+
+    private static int putBytes(ByteBuffer buf, int offs, byte[] src, int len) {
+        buf.extend(offs + len);
+        System.arraycopy(src, 0, buf.arr, offs, len);
+        return offs + len;
+    }
+
+    private String className;
+    private ClassDescriptor.FieldDescriptor[] fields;
+    private long[] offsets; // offsets of directly accessed fields, -1 for other fields
+
+    private ByteBuffer constants = new ByteBuffer();
+    private int        constantsSize;
+    private int        nConstants = 1;
+    private HashMap    constantMap = new HashMap();
+
+    private ByteBuffer code;
+    private int        codeSize;
+    private int        methodsSize;
+
+    private static boolean         initialized;
+    private static Method          objectFieldOffset;
+    private static SerializerLoader loader;
+    private static int             nGeneratedClasses;
+
+    private static final String serializerClass = "org/nachodb/impl/ClassSerializer";
+    private static final String storageClass = "org/nachodb/impl/StorageImpl";
+    private static final String bufferClass = "org/nachodb/impl/ByteBuffer";
+    private static final String bytesClass = "org/nachodb/impl/Bytes";
+    private static final String persistentInterface = "org/nachodb/IPersistent";
+    private static final String unsafeClass = "sun/misc/Unsafe";
+
+    private static final Class[] primitiveClasses = {
+        boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class
+    };
+    private static final String[] typeName = {
+        "Boolean", "Byte", "Char", "Short", "Int", "Long", "Float", "Double"
+    };
+    private static final String[] typeSignature = {
+        "Z", "B", "C", "S", "I", "J", "F", "D"
+    };
+
+    private static final byte CONSTANT_Utf8 = 1;
+    private static final byte CONSTANT_Integer = 3;
+    private static final byte CONSTANT_Long = 5;
+    private static final byte CONSTANT_Class = 7;
+    private static final byte CONSTANT_Fieldref = 9;
+    private static final byte CONSTANT_Methodref = 10;
+    private static final byte CONSTANT_NameAndType = 12;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD = 0x19;
+    private static final int ILOAD_3 = 0x1d;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int BALOAD = 0x33;
+    private static final int ISTORE = 0x36;
+    private static final int ISTORE_3 = 0x3e;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int IINC = 0x84;
+    private static final int I2C = 0x92;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int CHECKCAST = 0xc0;
+}
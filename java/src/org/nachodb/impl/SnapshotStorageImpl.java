@@ -0,0 +1,195 @@
+package org.nachodb.impl;
+
+import java.util.*;
+
+import org.nachodb.*;
+
+/**
+ * Read-only view of the last committed state of the storage.
+ * Snapshot resolves OIDs using object index of the committed root which was current at the moment of
+ * snapshot creation and has its own object cache, so it is not synchronized with the storage
+ * and readers are not blocked by the writer. Pages of the committed index which are going to be
+ * overwritten by commit are copied to the snapshot before the commit, and space of old versions
+ * of objects is not reused until all snapshots which can refer to them are closed.
+ */
+class SnapshotStorageImpl extends StorageImpl
+{
+    SnapshotStorageImpl(StorageImpl storage, OidHashTable cache) {
+        this.storage = storage;
+        pool = storage.pool;
+        encoding = storage.encoding;
+        compactRecords = storage.compactRecords;
+        loader = storage.loader;
+        index = storage.header.root[storage.currIndex].index;
+        indexSize = storage.committedIndexSize;
+        currIndexSize = indexSize;
+        databaseSize = storage.header.root[storage.currIndex].size;
+        rootOid = storage.header.root[storage.currIndex].rootObject;
+        generation = storage.commitGeneration;
+        privatePages = new HashMap();
+        classDescMap = new HashMap(storage.classDescMap);
+        objectCache = cache;
+        for (ClassDescriptor desc = storage.descList; desc != null; desc = desc.next) { 
+            if (desc.getOid() != 0) { 
+                objectCache.put(desc.getOid(), desc);
+            }
+        }
+        opened = true;
+    }
+
+    long getPos(int oid) {
+        synchronized (privatePages) { 
+            if (oid == 0 || oid >= indexSize) { 
+                throw new StorageError(StorageError.INVALID_OID);
+            }
+            int offs = (oid & (dbHandlesPerPage-1)) << 3;
+            byte[] data = (byte[])privatePages.get(new Integer(oid >>> dbHandlesPerPageBits));
+            if (data != null) { 
+                return Bytes.unpack8(data, offs);
+            }
+            Page pg = pool.getPage(index + ((long)(oid >>> dbHandlesPerPageBits) << Page.pageBits));
+            long pos = Bytes.unpack8(pg.data, offs);
+            pool.unfix(pg);
+            return pos;
+        }
+    }
+
+    /**
+     * Copy pages of the committed index which will be overwritten by the commit.
+     * Invoked by the storage before switching of the current root.
+     * @param map bitmap of changed index pages or <code>null</code> if all pages should be copied
+     */
+    void protectIndex(int[] map) {
+        synchronized (privatePages) { 
+            int nPages = (indexSize + dbHandlesPerPage - 1) >>> dbHandlesPerPageBits;
+            for (int i = 0; i < nPages; i++) { 
+                if (map == null || (map[i >> 5] & (1 << (i & 31))) != 0) { 
+                    Integer pageNo = new Integer(i);
+                    if (!privatePages.containsKey(pageNo)) { 
+                        Page pg = pool.getPage(index + ((long)i << Page.pageBits));
+                        privatePages.put(pageNo, pg.data.clone());
+                        pool.unfix(pg);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Switch snapshot to the index of the new committed root.
+     * All pages of this index which differ from the pinned state were copied by <code>protectIndex</code>.
+     */
+    void setIndex(long index) {
+        synchronized (privatePages) { 
+            this.index = index;
+        }
+    }
+
+    public synchronized IPersistent getRoot() {
+        if (!opened) { 
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+        return (rootOid == 0) ? null : lookupObject(rootOid, null);
+    }
+
+    public void setRoot(IPersistent root) {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public void commit() {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public CommitFuture commitAsync() {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public void rollback() {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public void importXML(java.io.Reader reader) throws XMLImportException {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public Storage createSnapshot() {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public int gc() {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public boolean compact(long maxMovedSize) {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public/*protected*/ void deallocateObject(IPersistent obj) {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public/*protected*/ void modifyObject(IPersistent obj) {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public/*protected*/ void storeObject(IPersistent obj) {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public/*protected*/ void storeFinalizedObject(IPersistent obj) {
+    }
+
+    public int makePersistent(IPersistent obj) {
+        throw new StorageError(StorageError.READ_ONLY_SNAPSHOT);
+    }
+
+    public long getDatabaseSize() { 
+        return databaseSize;
+    }
+
+    public long getUsedSize() { 
+        throw new StorageError(StorageError.NOT_SUPPORTED_BY_SNAPSHOT);
+    }
+
+    public HashMap getMemoryDump() { 
+        throw new StorageError(StorageError.NOT_SUPPORTED_BY_SNAPSHOT);
+    }
+
+    public void backup(java.io.OutputStream out) throws java.io.IOException { 
+        throw new StorageError(StorageError.NOT_SUPPORTED_BY_SNAPSHOT);
+    }
+
+    public synchronized void exportXML(java.io.Writer writer) throws java.io.IOException
+    {
+        if (!opened) { 
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+        if (rootOid != 0) { 
+            XMLExporter xmlExporter = new XMLExporter(this, writer);
+            xmlExporter.exportDatabase(rootOid);
+        }
+    }
+
+    public void close() {
+        synchronized (this) { 
+            if (!opened) { 
+                throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+            }
+            opened = false;
+            objectCache = null;
+            classDescMap = null;
+        }
+        synchronized (privatePages) { 
+            privatePages.clear();
+        }
+        storage.releaseSnapshot(this);
+    }
+
+    StorageImpl storage;
+    long        index;
+    int         indexSize;
+    int         rootOid;
+    long        databaseSize;
+    long        generation;
+    HashMap     privatePages; // page number -> copy of the committed index page
+}
@@ -33,10 +33,26 @@ public class StorageImpl implements Storage {
     private static final int  dbBitmapSegmentSize = 1 << dbBitmapSegmentBits;
     private static final int  dbBitmapPages = 1 << (dbDatabaseOffsetBits-dbBitmapSegmentBits);
     private static final int  dbLargeBitmapPages = 1 << (dbLargeDatabaseOffsetBits-dbBitmapSegmentBits);
-    private static final int  dbHandlesPerPageBits = Page.pageBits - 3;
-    private static final int  dbHandlesPerPage = 1 << dbHandlesPerPageBits;
+    static final int  dbHandlesPerPageBits = Page.pageBits - 3;
+    static final int  dbHandlesPerPage = 1 << dbHandlesPerPageBits;
     private static final int  dbDirtyPageBitmapSize = 1 << (32-dbHandlesPerPageBits-3);
 
+    /**
+     * Maximal number of objects in GC mark stack. If stack is overflown, reached objects are kept 
+     * only in grey bitmap and are pushed to the stack when it becomes empty.
+     */
+    private static final int  dbMaxMarkStackSize = 1024*1024;
+
+    /**
+     * Number of objects in the portion of the stack which is passed by parallel GC mark thread to other threads.
+     */
+    private static final int  dbMarkChunkSize = 256;
+
+    /**
+     * Number of locks protecting words of GC bitmap in parallel mark (should be power of 2)
+     */
+    private static final int  dbMarkLocks = 64;
+
     private static final int  dbInvalidId   = 0;
     private static final int  dbBitmapId    = 1;
     private static final int  dbFirstUserId = dbBitmapId + dbBitmapPages;
@@ -52,7 +68,7 @@ public class StorageImpl implements Storage {
         return i < dbBitmapPages ? dbBitmapId + i : header.root[1-currIndex].bitmapExtent + i;
     }
 
-    final long getPos(int oid) { 
+    long getPos(int oid) { 
         synchronized (objectCache) {
             if (oid == 0 || oid >= currIndexSize) { 
                 throw new StorageError(StorageError.INVALID_OID);
@@ -73,6 +89,13 @@ public class StorageImpl implements Storage {
                                    + ((long)(oid >>> dbHandlesPerPageBits) << Page.pageBits));
             Bytes.pack8(pg.data, (oid & (dbHandlesPerPage-1)) << 3, pos);
             pool.unfix(pg);
+            if (sweepActive && (pos & (dbFreeHandleFlag|dbPageObjectFlag)) == 0) { 
+                // object stored during incremental sweep should not be deallocated by it
+                int bit = (int)(pos >>> dbAllocationQuantumBits);
+                if ((bit >>> 5) < blackBitmap.length) { 
+                    blackBitmap[bit >>> 5] |= 1 << (bit & 31);
+                }
+            }
         }
     }
 
@@ -84,6 +107,34 @@ public class StorageImpl implements Storage {
         return pool.get(pos & ~dbFlagsMask);
     }
     
+    /**
+     * Convert record of the object to the format used by the storage.
+     * Records of B-Trees are always stored in standard format because garbage collector and XML exporter
+     * access them directly in the page.
+     */
+    final byte[] packRecord(byte[] rec, ClassDescriptor desc) { 
+        return compactRecords && !Btree.class.isAssignableFrom(desc.cls) ? CompactRecord.pack(rec) : rec;
+    }
+
+    /**
+     * Convert record of the object to the format used by the storage using the specified buffer
+     * @return record in the format used by the storage, array can be longer than the record
+     */
+    final byte[] packRecord(byte[] rec, ClassDescriptor desc, ByteBuffer buf) { 
+        if (compactRecords && !Btree.class.isAssignableFrom(desc.cls)) { 
+            CompactRecord.pack(rec, buf);
+            return buf.arr;
+        }
+        return rec;
+    }
+
+    /**
+     * Convert record of the object from the format used by the storage to standard format
+     */
+    final byte[] unpackRecord(byte[] rec, ClassDescriptor desc) { 
+        return compactRecords && !Btree.class.isAssignableFrom(desc.cls) ? CompactRecord.unpack(rec) : rec;
+    }
+
     final Page getPage(int oid) {  
         long pos = getPos(oid);
         if ((pos & (dbFreeHandleFlag|dbPageObjectFlag)) != dbPageObjectFlag) { 
@@ -126,6 +177,7 @@ public class StorageImpl implements Storage {
             }
             long pos = getPos(oid);
             objectCache.remove(oid);
+            updateObjectVersion(oid);
             int offs = (int)pos & (Page.pageSize-1);
             if ((offs & (dbFreeHandleFlag|dbPageObjectFlag)) != 0) { 
                 throw new StorageError(StorageError.DELETED_OBJECT);
@@ -365,9 +417,11 @@ public class StorageImpl implements Storage {
                     for (i = firstPage; i < lastPage; i++){
                         int spaceNeeded = objBitSize - holeBitSize < pageBits 
                             ? objBitSize - holeBitSize : pageBits;
-                        if (bitmapPageAvailableSpace[i] <= spaceNeeded) {
+                        if (freeSpaceIndex.get(i) <= spaceNeeded) {
                             holeBitSize = 0;
                             offs = 0;
+                            // skip pages which can not contain the object
+                            i = freeSpaceIndex.findFirst(i + 1, lastPage, objBitSize < pageBits ? objBitSize : pageBits) - 1;
                             continue;
                         }
                         pg = getBitmapPage(i);
@@ -408,7 +462,7 @@ public class StorageImpl implements Storage {
                                 while (holeBytes > Page.pageSize) { 
                                     memset(pg, 0, 0xFF, Page.pageSize);
                                     holeBytes -= Page.pageSize;
-                                    bitmapPageAvailableSpace[i] = 0;
+                                    freeSpaceIndex.set(i, 0);
                                     pool.unfix(pg);
                                     pg = putBitmapPage(--i);
                                 }
@@ -419,9 +473,9 @@ public class StorageImpl implements Storage {
                             }
                         }
                         if (startOffs == 0 && holeBitSize == 0
-                            && spaceNeeded < bitmapPageAvailableSpace[i]) 
+                            && spaceNeeded < freeSpaceIndex.get(i)) 
                         { 
-                            bitmapPageAvailableSpace[i] = spaceNeeded;
+                            freeSpaceIndex.set(i, spaceNeeded);
                         }
                         offs = 0;
                         pool.unfix(pg);
@@ -430,21 +484,31 @@ public class StorageImpl implements Storage {
                     for (i = firstPage; i < lastPage; i++){
                         int spaceNeeded = objBitSize - holeBitSize < pageBits 
                             ? objBitSize - holeBitSize : pageBits;
-                        if (bitmapPageAvailableSpace[i] <= spaceNeeded) {
+                        if (freeSpaceIndex.get(i) <= spaceNeeded) {
                             holeBitSize = 0;
                             offs = 0;
+                            // skip pages which can not contain the object
+                            i = freeSpaceIndex.findFirst(i + 1, lastPage, objBitSize < pageBits ? objBitSize : pageBits) - 1;
                             continue;
                         }
                         pg = getBitmapPage(i);
                         int startOffs = offs;
+                        int maxHoleBitSize = 0; // size of the largest hole inside the page
+                        int pageHoleBitSize = 0; // size of the current hole not including part in previous page
                         while (offs < Page.pageSize) { 
                             int mask = pg.data[offs] & 0xFF; 
+                            if (pageHoleBitSize + firstHoleSize[mask] > maxHoleBitSize) { 
+                                maxHoleBitSize = pageHoleBitSize + firstHoleSize[mask];
+                            }
+                            if (maxHoleSize[mask] > maxHoleBitSize) { 
+                                maxHoleBitSize = maxHoleSize[mask];
+                            }
                             if (holeBitSize + firstHoleSize[mask] >= objBitSize) { 
                                 pos = (((long)i*Page.pageSize + offs)*8 
                                        - holeBitSize) << dbAllocationQuantumBits;
                                 if (wasReserved(pos, size)) {                       
                                     startOffs = offs += (objBitSize + 7) >> 3;
-                                    holeBitSize = 0;
+                                    holeBitSize = pageHoleBitSize = 0;
                                     continue;
                                 }       
                                 reserveLocation(pos, size);
@@ -471,7 +535,7 @@ public class StorageImpl implements Storage {
                                     while (holeBitSize > pageBits) { 
                                         memset(pg, 0, 0xFF, Page.pageSize);
                                         holeBitSize -= pageBits;
-                                        bitmapPageAvailableSpace[i] = 0;
+                                        freeSpaceIndex.set(i, 0);
                                         pool.unfix(pg);
                                         pg = putBitmapPage(--i);
                                     }
@@ -488,7 +552,7 @@ public class StorageImpl implements Storage {
                                 pos = (((long)i*Page.pageSize + offs)*8 + holeBitOffset) << dbAllocationQuantumBits;
                                 if (wasReserved(pos, size)) { 
                                     startOffs = offs += (objBitSize + 7) >> 3;
-                                    holeBitSize = 0;
+                                    holeBitSize = pageHoleBitSize = 0;
                                     continue;
                                 }       
                                 reserveLocation(pos, size);
@@ -511,14 +575,15 @@ public class StorageImpl implements Storage {
                             offs += 1;
                             if (lastHoleSize[mask] == 8) { 
                                 holeBitSize += 8;
+                                pageHoleBitSize += 8;
                             } else { 
-                                holeBitSize = lastHoleSize[mask];
+                                holeBitSize = pageHoleBitSize = lastHoleSize[mask];
                             }
                         }
-                        if (startOffs == 0 && holeBitSize == 0
-                            && spaceNeeded < bitmapPageAvailableSpace[i]) 
-                        {
-                            bitmapPageAvailableSpace[i] = spaceNeeded;
+                        if (startOffs == 0 && holeBitSize == 0) {
+                            // whole page was inspected and it is not ending with hole, 
+                            // so size of the largest hole in it is known
+                            freeSpaceIndex.set(i, maxHoleBitSize + 1);
                         }
                         offs = 0;
                         pool.unfix(pg);
@@ -574,12 +639,7 @@ public class StorageImpl implements Storage {
                             header.root[curr].index = newIndex;
                             header.root[curr].indexSize = newIndexSize;
                         }
-                        int[] newBitmapPageAvailableSpace = new int[dbLargeBitmapPages];
-                        System.arraycopy(bitmapPageAvailableSpace, 0, newBitmapPageAvailableSpace, 0, dbBitmapPages);
-                        for (j = dbBitmapPages; j < dbLargeBitmapPages; j++) { 
-                            newBitmapPageAvailableSpace[j] = Integer.MAX_VALUE;
-                        }
-                        bitmapPageAvailableSpace = newBitmapPageAvailableSpace;
+                        freeSpaceIndex.extend(dbLargeBitmapPages);
                         
                         for (j = 0; j < dbLargeBitmapPages - dbBitmapPages; j++) { 
                             setPos(currIndexSize + j, dbFreeHandleFlag);
@@ -623,7 +683,7 @@ public class StorageImpl implements Storage {
                         currPBitmapOffs = 0;
                     }
                     while (j > i) { 
-                        bitmapPageAvailableSpace[--j] = 0;
+                        freeSpaceIndex.set(--j, 0);
                     }
                 
                     pos = ((long)i*Page.pageSize*8 - holeBitSize)  << dbAllocationQuantumBits;
@@ -640,7 +700,7 @@ public class StorageImpl implements Storage {
                             holeBitSize -= pageBits;
                             pg = putBitmapPage(--i);
                             memset(pg, 0, 0xFF, Page.pageSize);
-                            bitmapPageAvailableSpace[i] = 0;
+                            freeSpaceIndex.set(i, 0);
                             pool.unfix(pg);
                         }
                         pg = putBitmapPage(--i);
@@ -715,7 +775,7 @@ public class StorageImpl implements Storage {
             if (pageId == currRBitmapPage && offs < currRBitmapOffs) { 
                 currRBitmapOffs = offs;
             }
-            bitmapPageAvailableSpace[pageId] = Integer.MAX_VALUE;
+            freeSpaceIndex.set(pageId, Integer.MAX_VALUE);
         
             if (objBitSize > 8 - bitOffs) { 
                 objBitSize -= 8 - bitOffs;
@@ -724,7 +784,7 @@ public class StorageImpl implements Storage {
                     memset(pg, offs, 0, Page.pageSize - offs);
                     pool.unfix(pg);
                     pg = putBitmapPage(++pageId);
-                    bitmapPageAvailableSpace[pageId] = Integer.MAX_VALUE;
+                    freeSpaceIndex.set(pageId, Integer.MAX_VALUE);
                     objBitSize -= (Page.pageSize - offs)*8;
                     offs = 0;
                 }
@@ -786,7 +846,18 @@ public class StorageImpl implements Storage {
     public synchronized void open(String filePath, int pagePoolSize) {
         IFile file = filePath.startsWith("@") 
             ? (IFile)new MultiFile(filePath.substring(1), readOnly, noFlush)
-            : (IFile)new OSFile(filePath, readOnly, noFlush);      
+            : mappedFile
+                ? (IFile)new MappedFile(filePath, 0, readOnly, noFlush)
+                : (IFile)new OSFile(filePath, readOnly, noFlush, positionalIO);
+        if (writeAheadLog && !readOnly) { 
+            try { 
+                file = new WalFile(file, (filePath.startsWith("@") ? filePath.substring(1) : filePath) + ".wal", 
+                                   WalFile.DEFAULT_CHECKPOINT_SIZE, noFlush);
+            } catch (StorageError ex) { 
+                file.close();
+                throw ex;
+            }
+        }
         try {
             open(file, pagePoolSize);
         } catch (StorageError ex) {
@@ -820,6 +891,25 @@ public class StorageImpl implements Storage {
         return new LruObjectCache(objectCacheSize);
     }
 
+    final PagePool createPagePool(int pagePoolSize) 
+    { 
+        PagePool pagePool;
+        if (pagePoolPartitions > 1 && pagePoolSize != INFINITE_PAGE_POOL) { 
+            pagePool = new PartitionedPagePool(pagePoolSize/Page.pageSize, pagePoolPartitions, pageReplacementPolicy);
+        } else { 
+            pagePool = new PagePool(pagePoolSize/Page.pageSize, pageReplacementPolicy);
+        }
+        if (offHeapPagePoolSize > 0 && pagePoolSize != INFINITE_PAGE_POOL) { 
+            pagePool.offHeapCache = new OffHeapPageCache(offHeapPagePoolSize);
+        }
+        if (writerHighWatermark > 0) { 
+            pagePool.dirtyHighWatermark = writerHighWatermark;
+            pagePool.dirtyLowWatermark = writerLowWatermark > 0 && writerLowWatermark < writerHighWatermark 
+                ? writerLowWatermark : writerHighWatermark/2;
+        }
+        return pagePool;
+    }
+
     protected boolean isDirty() { 
         return header.dirty;
     }
@@ -828,11 +918,16 @@ public class StorageImpl implements Storage {
         if (opened) {
             throw new StorageError(StorageError.STORAGE_ALREADY_OPENED);
         }
+        if (Page.specifiedPageBits < 0) { 
+            throw new StorageError(StorageError.BAD_PROPERTY_VALUE);
+        }
         if (lockFile) { 
             if (!file.lock()) { 
                 throw new StorageError(StorageError.STORAGE_IS_USED);
             }
         }
+        // log preserves order of writes, so there is no need to flush data pages before header
+        singleFlushCommit = file instanceof WalFile;
         Page pg;
         int i;
         int indexSize = initIndexSize;
@@ -855,7 +950,18 @@ public class StorageImpl implements Storage {
         nCommittedTransactions = 0;
         scheduledCommitTime = Long.MAX_VALUE;
         transactionMonitor = new Object();
+        groupCommitInProgress = false;
+        nCommitRequests = 0;
+        nCompletedCommitRequests = 0;
         transactionLock = new PersistentResource();
+        lockManager = useLockManager ? new LockManager() : null;
+
+        compactionWindow = -1;
+
+        snapshots = new ArrayList();
+        deferredFrees = new long[3*64];
+        nDeferredFrees = 0;
+        commitGeneration = 0;
 
         modified = false; 
 
@@ -875,11 +981,13 @@ public class StorageImpl implements Storage {
             throw new StorageError(StorageError.DATABASE_CORRUPTED);
         }
         if (pool == null) { 
-            pool = new PagePool(pagePoolSize/Page.pageSize);
+            pool = createPagePool(pagePoolSize);
             pool.open(file);
         }
         if (!header.initialized) {          
             header.curr = currIndex = 0;
+            header.pageBits = Page.pageBits;
+            header.compactRecords = compactRecords = useCompactRecords;
             long used = Page.pageSize;
             header.root[0].index = used;
             header.root[0].indexSize = indexSize;
@@ -949,6 +1057,10 @@ public class StorageImpl implements Storage {
         } else {
             int curr = header.curr;
             currIndex = curr;
+            compactRecords = header.compactRecords;
+            if ((header.pageBits == 0 ? Page.defaultPageBits : header.pageBits) != Page.pageBits) { 
+                throw new StorageError(StorageError.INCOMPATIBLE_PAGE_SIZE);
+            }
             if (header.root[curr].indexSize != header.root[curr].shadowIndexSize) {
                 throw new StorageError(StorageError.DATABASE_CORRUPTED);
             }           
@@ -985,15 +1097,78 @@ public class StorageImpl implements Storage {
             usedSize = header.root[curr].size;
         }
         int bitmapSize = header.root[1-currIndex].bitmapExtent == 0 ? dbBitmapPages : dbLargeBitmapPages;
-        bitmapPageAvailableSpace = new int[bitmapSize];
-        for (i = 0; i < bitmapPageAvailableSpace.length; i++) { 
-            bitmapPageAvailableSpace[i] = Integer.MAX_VALUE;
-        }        
+        freeSpaceIndex = new FreeSpaceIndex(bitmapSize);
         currRBitmapPage = currPBitmapPage = 0;
         currRBitmapOffs = currPBitmapOffs = 0;
 
         opened = true;
         reloadScheme();
+
+        if (warmupFile != null) { 
+            startWarmup();
+        }
+    }
+
+    private void startWarmup() { 
+        File f = new File(warmupFile);
+        if (!f.exists()) { 
+            return;
+        }
+        long[] pages;
+        try { 
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try { 
+                int nPages = in.readInt();
+                if (nPages < 0 || nPages > (f.length() - 4) / 8) { 
+                    return;
+                }
+                long end = header.root[currIndex].size;
+                long fileLength = pool.file.length();
+                if (fileLength >= 0 && fileLength < end) { 
+                    end = fileLength;
+                }
+                pages = new long[nPages];
+                int n = 0;
+                for (int i = 0; i < nPages; i++) { 
+                    long pos = in.readLong();
+                    // skip offsets from stale or corrupted file
+                    if (pos >= 0 && (pos & (Page.pageSize-1)) == 0 && pos < end) { 
+                        pages[n++] = pos;
+                    }
+                }
+                if (n < nPages) { 
+                    long[] validPages = new long[n];
+                    System.arraycopy(pages, 0, validPages, 0, n);
+                    pages = validPages;
+                }
+            } finally { 
+                in.close();
+            }
+        } catch (IOException x) { 
+            return; // warm-up is just optimization, so ignore broken file
+        }
+        warmup = new PagePrefetcher(pool, pages, pages.length, PagePrefetcher.DEFAULT_THREADS);
+        if (!warmupInBackground) { 
+            warmup.join();
+            warmup = null;
+        }
+    }
+
+    private void saveResidentPages() { 
+        long[] pages = pool.getResidentPages();
+        try { 
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(warmupFile)));
+            try { 
+                out.writeInt(pages.length);
+                for (int i = 0; i < pages.length; i++) { 
+                    out.writeLong(pages[i]);
+                }
+            } finally { 
+                out.close();
+            }
+        } catch (IOException x) { 
+            // failure to save warm-up file should not prevent closing of the storage
+        }
     }
 
     public boolean isOpened() { 
@@ -1067,7 +1242,10 @@ public class StorageImpl implements Storage {
             throw new StorageError(StorageError.STORAGE_NOT_OPENED);
         }
         int rootOid = header.root[1-currIndex].rootObject;
-        return (rootOid == 0) ? null : lookupObject(rootOid, null);
+        if (rootOid == 0) { 
+            return null;
+        }
+        return lookupObject(rootOid, null);
     }
     
     public synchronized void setRoot(IPersistent root) {
@@ -1082,6 +1260,157 @@ public class StorageImpl implements Storage {
     }
  
     public void commit() {
+        if (groupCommit) { 
+            groupCommit();
+        } else { 
+            commitChanges();
+        }
+    }
+
+    /**
+     * Commit performed by several threads at once.
+     * First thread becomes leader: it waits <code>groupCommitDelay</code> milliseconds, 
+     * then commits changes made by all threads which requested commit before and wakes them up.
+     * Threads requesting commit while leader is committing wait for completion of the commit
+     * and then one of them becomes new leader and commits changes of all of them.
+     */
+    private void groupCommit() { 
+        long request;
+        synchronized (groupCommitMonitor) { 
+            request = ++nCommitRequests;
+            while (true) { 
+                if (nCompletedCommitRequests >= request) { 
+                    return;
+                }
+                if (!groupCommitInProgress) { 
+                    groupCommitInProgress = true;
+                    break;
+                }
+                try { 
+                    groupCommitMonitor.wait();
+                } catch (InterruptedException x) {}
+            }
+        }
+        long lastRequest = request;
+        try { 
+            if (groupCommitDelay > 0) { 
+                try { 
+                    Thread.sleep(groupCommitDelay);
+                } catch (InterruptedException x) {}
+            }
+            synchronized (groupCommitMonitor) { 
+                lastRequest = nCommitRequests;
+            }
+            commitChanges();
+            synchronized (groupCommitMonitor) { 
+                nCompletedCommitRequests = lastRequest;
+            }
+        } finally { 
+            synchronized (groupCommitMonitor) { 
+                groupCommitInProgress = false;
+                groupCommitMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Asynchronous commit: modified objects are stored, dirty pages are written to the file 
+     * and the new database state is made current by the calling thread, so it can continue to 
+     * modify objects after return from this method. Only syncing the file and writing of the new 
+     * header is performed by commit thread. Until it is done no page can be written to the file
+     * (see CommitBarrier), because it can overwrite the last durable state of the database.
+     */
+    public CommitFuture commitAsync() { 
+        CommitFutureImpl future = new CommitFutureImpl();
+        synchronized (backgroundGcMonitor) { 
+            synchronized (this) { 
+                if (!opened) {
+                    throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+                }
+                if (commitThread == null) { 
+                    commitThread = new CommitThread();
+                }
+                pool.barrier.check();
+                objectCache.flush();
+                if (modified) { 
+                    commit0(future);
+                    modified = false;
+                } else { 
+                    // changes can be committed by previous asynchronous commit which is not yet durable
+                    commitThread.add(null, future);
+                }
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Thread completing asynchronous commits
+     */
+    class CommitThread extends Thread { 
+        private ArrayList futures = new ArrayList();
+        private ArrayList headers = new ArrayList(); // images of header page of committed transactions
+        private boolean   stopped;
+
+        CommitThread() { 
+            setDaemon(true);
+            start();
+        }
+
+        synchronized void add(byte[] header, CommitFutureImpl future) { 
+            headers.add(header);
+            futures.add(future);
+            notify();
+        }
+
+        void terminate() { 
+            synchronized (this) { 
+                stopped = true;
+                notify();
+            }
+            try { 
+                join();
+            } catch (InterruptedException x) {}
+        }
+
+        public void run() { 
+            while (true) { 
+                byte[] header;
+                CommitFutureImpl future;
+                synchronized (this) { 
+                    while (futures.size() == 0 && !stopped) { 
+                        try { 
+                            wait();
+                        } catch (InterruptedException x) {}
+                    }
+                    if (futures.size() == 0) { 
+                        return;
+                    }
+                    header = (byte[])headers.remove(0);
+                    future = (CommitFutureImpl)futures.remove(0);
+                }
+                StorageError error = pool.barrier.getFailure();
+                if (header != null) { 
+                    try { 
+                        if (!singleFlushCommit) { 
+                            pool.file.sync();
+                        }
+                        pool.file.write(0, header);
+                        pool.file.sync();
+                    } catch (StorageError x) { 
+                        // all subsequent commits are based on the state which is not durable
+                        error = x;
+                        pool.barrier.fail(x);
+                    } finally { 
+                        pool.barrier.unlock();
+                    }
+                }
+                future.complete(error);
+            }
+        }
+    }
+
+    private void commitChanges() {
         synchronized (backgroundGcMonitor) { 
             synchronized (this) { 
                 if (!opened) {
@@ -1089,6 +1418,8 @@ public class StorageImpl implements Storage {
                 }
                 objectCache.flush();
                 if (!modified) { 
+                    // wait until changes committed by asynchronous commit are durable
+                    pool.barrier.pass();
                     return;
                 }
                 commit0();
@@ -1098,6 +1429,16 @@ public class StorageImpl implements Storage {
     }
 
     private final void commit0() 
+    {
+        commit0(null);
+    }
+
+    /**
+     * Commit current transaction
+     * @param future if not <code>null</code> then commit is asynchronous: pages are written
+     * to the file without sync and header is written by commit thread which completes this future
+     */
+    private final void commit0(CommitFutureImpl future) 
     {
         int i, j, n;
         int curr = currIndex;
@@ -1105,9 +1446,14 @@ public class StorageImpl implements Storage {
         int oldIndexSize = header.root[curr].indexSize;
         int newIndexSize = header.root[1-curr].indexSize;
         int nPages = committedIndexSize >>> dbHandlesPerPageBits;
+        // index was reallocated by the current transaction
+        boolean indexMoved = header.root[1-curr].index != header.root[curr].shadowIndex;
         Page pg;
 
-        if (newIndexSize > oldIndexSize) { 
+        if (nDeferredFrees != 0) { 
+            freeDeferred();
+        }
+        if (newIndexSize > oldIndexSize || indexMoved) { 
             cloneBitmap(header.root[curr].index, oldIndexSize*8L);
             long newIndex;
             while (true) { 
@@ -1120,7 +1466,7 @@ public class StorageImpl implements Storage {
             }
             header.root[1-curr].shadowIndex = newIndex;
             header.root[1-curr].shadowIndexSize = newIndexSize;
-            free(header.root[curr].index, oldIndexSize*8L);
+            freeOldVersion(header.root[curr].index, oldIndexSize*8L);
         }
         for (i = 0; i < nPages; i++) { 
             if ((map[i >> 5] & (1 << (i & 31))) != 0) { 
@@ -1131,11 +1477,11 @@ public class StorageImpl implements Storage {
                     if (Bytes.unpack8(srcIndex.data, j) != pos) { 
                         if ((pos & dbFreeHandleFlag) == 0) {
                             if ((pos & dbPageObjectFlag) != 0) {  
-                                free(pos & ~dbFlagsMask, Page.pageSize);
+                                freeOldVersion(pos & ~dbFlagsMask, Page.pageSize);
                             } else if (pos != 0) { 
                                 int offs = (int)pos & (Page.pageSize-1);
                                 pg = pool.getPage(pos-offs);
-                                free(pos, ObjectHeader.getSize(pg.data, offs));
+                                freeOldVersion(pos, ObjectHeader.getSize(pg.data, offs));
                                 pool.unfix(pg);
                             }
                         }
@@ -1155,11 +1501,11 @@ public class StorageImpl implements Storage {
                 if (Bytes.unpack8(srcIndex.data, j) != pos) { 
                     if ((pos & dbFreeHandleFlag) == 0) {
                         if ((pos & dbPageObjectFlag) != 0) { 
-                            free(pos & ~dbFlagsMask, Page.pageSize);
+                            freeOldVersion(pos & ~dbFlagsMask, Page.pageSize);
                         } else if (pos != 0) { 
                             int offs = (int)pos & (Page.pageSize-1);
                             pg = pool.getPage(pos - offs);
-                            free(pos, ObjectHeader.getSize(pg.data, offs));
+                            freeOldVersion(pos, ObjectHeader.getSize(pg.data, offs));
                             pool.unfix(pg);
                         }
                     }
@@ -1192,16 +1538,30 @@ public class StorageImpl implements Storage {
                 page += Page.pageSize;
             }
         }
+        if (snapshots.size() != 0) { 
+            protectSnapshots(currIndexSize == 0 || newIndexSize != oldIndexSize || indexMoved);
+        }
         header.root[1-curr].usedSize = usedSize;
         pg = pool.putPage(0);
         header.pack(pg.data);
-        pool.flush();
+        if (future != null) { 
+            pool.flush(true);
+        } else if (!singleFlushCommit) { 
+            pool.flush();
+        }
         pool.modify(pg);
         header.curr = curr ^= 1;
         header.dirty = true;
         header.pack(pg.data);
-        pool.unfix(pg);
-        pool.flush();
+        if (future != null) { 
+            byte[] image = new byte[Page.pageSize];
+            System.arraycopy(pg.data, 0, image, 0, Page.pageSize);
+            pool.unfix(pg);
+            commitThread.add(image, future);
+        } else { 
+            pool.unfix(pg);
+            pool.flush();
+        }
         header.root[1-curr].size = header.root[curr].size;
         header.root[1-curr].indexUsed = currIndexSize; 
         header.root[1-curr].freeList  = header.root[curr].freeList; 
@@ -1209,7 +1569,7 @@ public class StorageImpl implements Storage {
         header.root[1-curr].rootObject = header.root[curr].rootObject; 
         header.root[1-curr].classDescList = header.root[curr].classDescList; 
         header.root[1-curr].bitmapExtent = header.root[curr].bitmapExtent; 
-        if (currIndexSize == 0 || newIndexSize != oldIndexSize) {
+        if (currIndexSize == 0 || newIndexSize != oldIndexSize || indexMoved) {
             header.root[1-curr].index = header.root[curr].shadowIndex;
             header.root[1-curr].indexSize = header.root[curr].shadowIndexSize;
             header.root[1-curr].shadowIndex = header.root[curr].index;
@@ -1246,6 +1606,77 @@ public class StorageImpl implements Storage {
         gcDone = false;
         currIndex = curr;
         committedIndexSize = currIndexSize;
+        commitGeneration += 1;
+        for (i = snapshots.size(); --i >= 0;) { 
+            ((SnapshotStorageImpl)snapshots.get(i)).setIndex(header.root[curr].index);
+        }
+    }
+
+    /**
+     * Free space of the object version which is replaced by the commit.
+     * If there are active snapshots, freeing is postponed until all snapshots 
+     * which can refer to this version are closed.
+     */
+    private final void freeOldVersion(long pos, long size) { 
+        if (snapshots.size() == 0) { 
+            free(pos, size);
+        } else { 
+            if (nDeferredFrees*3 == deferredFrees.length) { 
+                long[] newDeferredFrees = new long[deferredFrees.length*2];
+                System.arraycopy(deferredFrees, 0, newDeferredFrees, 0, deferredFrees.length);
+                deferredFrees = newDeferredFrees;
+            }
+            deferredFrees[nDeferredFrees*3] = pos;
+            deferredFrees[nDeferredFrees*3+1] = size;
+            deferredFrees[nDeferredFrees*3+2] = commitGeneration;
+            nDeferredFrees += 1;
+        }
+    }
+
+    /**
+     * Free space of old object versions not visible to any of the active snapshots.
+     * Deferred frees are ordered by generation, so them are released from the beginning of the list.
+     */
+    private final void freeDeferred() { 
+        long oldestGeneration = Long.MAX_VALUE;
+        for (int i = snapshots.size(); --i >= 0;) { 
+            long generation = ((SnapshotStorageImpl)snapshots.get(i)).generation;
+            if (generation < oldestGeneration) { 
+                oldestGeneration = generation;
+            }
+        }
+        int n = 0;
+        while (n < nDeferredFrees && deferredFrees[n*3+2] < oldestGeneration) { 
+            free(deferredFrees[n*3], deferredFrees[n*3+1]);
+            n += 1;
+        }
+        if (n != 0) { 
+            System.arraycopy(deferredFrees, n*3, deferredFrees, 0, (nDeferredFrees - n)*3);
+            nDeferredFrees -= n;
+        }
+    }
+
+    private final void protectSnapshots(boolean wholeIndex) { 
+        for (int i = snapshots.size(); --i >= 0;) { 
+            ((SnapshotStorageImpl)snapshots.get(i)).protectIndex(wholeIndex ? null : dirtyPagesMap);
+        }
+    }
+
+    public synchronized Storage createSnapshot() { 
+        if (!opened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+        SnapshotStorageImpl snapshot = new SnapshotStorageImpl(this, new WeakHashTable(objectCacheInitSize));
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+
+    final synchronized void releaseSnapshot(SnapshotStorageImpl snapshot) { 
+        snapshots.remove(snapshot);
+        if (nDeferredFrees != 0 && opened) { 
+            // space of old versions will be reclaimed by the next commit
+            modified = true;
+        }
     }
 
     public synchronized void rollback() {
@@ -1289,6 +1720,7 @@ public class StorageImpl implements Storage {
         header.root[1-curr].bitmapExtent = header.root[curr].bitmapExtent;
         usedSize = header.root[curr].size;
         currIndexSize = committedIndexSize;
+        freeSpaceIndex.reset();
         currRBitmapPage = currPBitmapPage = 0;
         currRBitmapOffs = currPBitmapOffs = 0;
         reloadScheme();
@@ -1342,6 +1774,7 @@ public class StorageImpl implements Storage {
         newHeader.curr = 0;
         newHeader.dirty = false;
         newHeader.initialized = true;
+        newHeader.compactRecords = header.compactRecords;
         long newFileSize = (long)(nPagedObjects + nIndexPages*2 + 1)*Page.pageSize + totalRecordsSize;
         newFileSize = (newFileSize + Page.pageSize-1) & ~(Page.pageSize-1);     
         newHeader.root = new RootPage[2];
@@ -1605,12 +2038,77 @@ public class StorageImpl implements Storage {
                 throw new StorageError(StorageError.INVALID_OID);
             }
             int bit = (int)(pos >>> dbAllocationQuantumBits);
-            if ((blackBitmap[bit >>> 5] & (1 << (bit & 31))) == 0) { 
-                greyBitmap[bit >>> 5] |= 1 << (bit & 31);
+            int mask = 1 << (bit & 31);
+            Thread thread = Thread.currentThread();
+            if (thread instanceof MarkThread) { 
+                // parallel mark: object is marked when it is reached and placed in the stack of the thread
+                synchronized (markLocks[(bit >>> 5) & (dbMarkLocks-1)]) { 
+                    if ((blackBitmap[bit >>> 5] & mask) != 0) { 
+                        return;
+                    }
+                    blackBitmap[bit >>> 5] |= mask;
+                }
+                ((MarkThread)thread).push(bit);
+            } else if (((blackBitmap[bit >>> 5] | greyBitmap[bit >>> 5]) & mask) == 0) { 
+                greyBitmap[bit >>> 5] |= mask;
+                if (markStackTop == markStack.length) { 
+                    if (markStackTop == dbMaxMarkStackSize) { 
+                        // object will be taken from grey bitmap when stack becomes empty
+                        if ((bit >>> 5) < greyScanStart) { 
+                            greyScanStart = bit >>> 5;
+                        }
+                        return;
+                    }
+                    int[] newMarkStack = new int[markStackTop*2];
+                    System.arraycopy(markStack, 0, newMarkStack, 0, markStackTop);
+                    markStack = newMarkStack;
+                }
+                markStack[markStackTop++] = bit;
             }
         }
     }
 
+    final void startMark(int bitmapSize) { 
+        greyBitmap = new int[bitmapSize];
+        blackBitmap = new int[bitmapSize];
+        markStack = new int[1024];
+        markStackTop = 0;
+        greyScanStart = bitmapSize;
+    }
+
+    /**
+     * Take next object from the mark stack and mark it as visited
+     * @return bit of the object in GC bitmaps or -1 if all reachable objects are visited
+     */
+    final int nextGreyObject() { 
+        if (markStackTop == 0) { 
+            // push objects which were not placed in the stack because of its overflow
+            int i = greyScanStart;
+            greyScanStart = greyBitmap.length;
+            for (; i < greyBitmap.length; i++) { 
+                int word = greyBitmap[i];
+                if (word != 0) { 
+                    if (markStackTop + 32 > markStack.length) { 
+                        greyScanStart = i;
+                        break;
+                    }
+                    for (int j = 0; j < 32; j++) { 
+                        if ((word & (1 << j)) != 0) { 
+                            markStack[markStackTop++] = (i << 5) + j;
+                        }
+                    }
+                }
+            }
+            if (markStackTop == 0) { 
+                return -1;
+            }
+        }
+        int bit = markStack[--markStackTop];
+        greyBitmap[bit >>> 5] &= ~(1 << (bit & 31));
+        blackBitmap[bit >>> 5] |= 1 << (bit & 31);
+        return bit;
+    }
+
     final Page getGCPage(int oid) {  
         return pool.getPage(getGCPos(oid) & ~dbFlagsMask);
     }
@@ -1621,62 +2119,271 @@ public class StorageImpl implements Storage {
 
     private void mark() { 
         int bitmapSize = (int)(header.root[currIndex].size >>> (dbAllocationQuantumBits + 5)) + 1;
-        boolean existsNotMarkedObjects;
-        long pos;
-        int  i, j;
+        int  bit;
         
         if (listener != null) { 
             listener.gcStarted();
         }           
 
-        greyBitmap = new int[bitmapSize];
-        blackBitmap = new int[bitmapSize];
+        startMark(bitmapSize);
         int rootOid = header.root[currIndex].rootObject;
         if (rootOid != 0) { 
-            markOid(rootOid);
-            do { 
-                existsNotMarkedObjects = false;
-                for (i = 0; i < bitmapSize; i++) { 
-                    if (greyBitmap[i] != 0) { 
-                        existsNotMarkedObjects = true;
-                        for (j = 0; j < 32; j++) { 
-                            if ((greyBitmap[i] & (1 << j)) != 0) { 
-                                pos = (((long)i << 5) + j) << dbAllocationQuantumBits;
-                                greyBitmap[i] &= ~(1 << j);
-                                blackBitmap[i] |= 1 << j;
-                                int offs = (int)pos & (Page.pageSize-1);
-                                Page pg = pool.getPage(pos - offs);
-                                int typeOid = ObjectHeader.getType(pg.data, offs);
-                                if (typeOid != 0) { 
-                                    ClassDescriptor desc = findClassDescriptor(typeOid);
-                                    if (Btree.class.isAssignableFrom(desc.cls)) { 
-                                        Btree btree = new Btree(pg.data, ObjectHeader.sizeof + offs);
-                                        btree.assignOid(this, 0, false);
-                                        btree.markTree();
-                                    } else if (desc.hasReferences) { 
-                                        markObject(pool.get(pos), ObjectHeader.sizeof, desc);
-                                    }
-                                }
-                                pool.unfix(pg);                                
-                            }
+            if (gcThreads > 1) { 
+                parallelMark(rootOid);
+            } else { 
+                markOid(rootOid);
+                while ((bit = nextGreyObject()) >= 0) { 
+                    markReferences((long)bit << dbAllocationQuantumBits);
+                }
+            }
+        }    
+        markStack = null;
+    }
+
+    /**
+     * Mark objects referenced by the object at the specified position
+     */
+    final void markReferences(long pos) { 
+        int offs = (int)pos & (Page.pageSize-1);
+        Page pg = pool.getPage(pos - offs);
+        int typeOid = ObjectHeader.getType(pg.data, offs);
+        if (typeOid != 0) { 
+            ClassDescriptor desc = getMarkClassDescriptor(typeOid);
+            if (Btree.class.isAssignableFrom(desc.cls)) { 
+                Btree btree = new Btree(pg.data, ObjectHeader.sizeof + offs);
+                btree.assignOid(this, 0, false);
+                btree.markTree();
+            } else if (desc.hasReferences) { 
+                markObject(unpackRecord(pool.get(pos), desc), ObjectHeader.sizeof, desc);
+            }
+        }
+        pool.unfix(pg);                                
+    }
+
+    /**
+     * Get class descriptor of the marked object. Parallel mark threads can not use object cache, 
+     * so descriptors are taken from the table built before starting the threads.
+     */
+    private ClassDescriptor getMarkClassDescriptor(int oid) { 
+        if (markDescOids == null) { 
+            return findClassDescriptor(oid);
+        }
+        int i = Arrays.binarySearch(markDescOids, oid);
+        if (i < 0) { 
+            throw new StorageError(StorageError.INVALID_OID);
+        }
+        return markDescs[i];
+    }
+
+    /**
+     * Mark objects reachable from the root using <code>gcThreads</code> threads.
+     * Each thread traverses objects using its own stack and shares part of it with other threads
+     * through the list of chunks when its stack is full or some threads have no work to do.
+     * Mark is completed when all threads are idle and there are no more chunks.
+     */
+    private void parallelMark(int rootOid) { 
+        int nDescs = 0;
+        for (ClassDescriptor desc = descList; desc != null; desc = desc.next) { 
+            if (desc.getOid() != 0) { 
+                nDescs += 1;
+            }
+        }
+        markDescOids = new int[nDescs];
+        markDescs = new ClassDescriptor[nDescs];
+        nDescs = 0;
+        for (ClassDescriptor desc = descList; desc != null; desc = desc.next) { 
+            if (desc.getOid() != 0) { 
+                markDescOids[nDescs++] = desc.getOid();
+            }
+        }
+        Arrays.sort(markDescOids);
+        for (ClassDescriptor desc = descList; desc != null; desc = desc.next) { 
+            if (desc.getOid() != 0) { 
+                markDescs[Arrays.binarySearch(markDescOids, desc.getOid())] = desc;
+            }
+        }
+        markLocks = new Object[dbMarkLocks];
+        for (int i = 0; i < dbMarkLocks; i++) { 
+            markLocks[i] = new Object();
+        }
+        long pos = getGCPos(rootOid);
+        if ((pos & (dbFreeHandleFlag|dbPageObjectFlag)) != 0) { 
+            throw new StorageError(StorageError.INVALID_OID);
+        }
+        int bit = (int)(pos >>> dbAllocationQuantumBits);
+        blackBitmap[bit >>> 5] |= 1 << (bit & 31);
+        markChunks = new ArrayList();
+        markChunks.add(new int[]{bit});
+        nMarkThreads = gcThreads;
+        nIdleMarkThreads = 0;
+        markDone = false;
+        markError = null;
+
+        MarkThread[] threads = new MarkThread[gcThreads];
+        for (int i = 0; i < threads.length; i++) { 
+            threads[i] = new MarkThread();
+            threads[i].start();
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < threads.length; i++) { 
+            while (threads[i].isAlive()) { 
+                try { 
+                    threads[i].join();
+                } catch (InterruptedException x) { 
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) { 
+            Thread.currentThread().interrupt();
+        }
+        markChunks = null;
+        markLocks = null;
+        markDescOids = null;
+        markDescs = null;
+        Throwable x = markError;
+        if (x != null) { 
+            markError = null;
+            if (x instanceof RuntimeException) { 
+                throw (RuntimeException)x;
+            } else if (x instanceof Error) { 
+                throw (Error)x;
+            } else { 
+                throw new StorageError(StorageError.ACCESS_VIOLATION, (Exception)x);
+            }
+        }
+    }
+
+    /**
+     * Make portion of mark stack available to other parallel mark threads
+     */
+    final void putMarkChunk(int[] chunk) { 
+        synchronized (markChunks) { 
+            markChunks.add(chunk);
+            if (nIdleMarkThreads != 0) { 
+                markChunks.notify();
+            }
+        }
+    }
+
+    /**
+     * Get portion of mark stack shared by other parallel mark thread, waiting until it is available
+     * @return array with bits of objects to be traversed or <code>null</code> if mark is completed
+     */
+    final int[] takeMarkChunk() throws InterruptedException { 
+        synchronized (markChunks) { 
+            while (markChunks.size() == 0) { 
+                if (markDone) { 
+                    return null;
+                }
+                if (++nIdleMarkThreads == nMarkThreads) { 
+                    markDone = true;
+                    markChunks.notifyAll();
+                    return null;
+                }
+                markChunks.wait();
+                nIdleMarkThreads -= 1;
+            }
+            return (int[])markChunks.remove(markChunks.size()-1);
+        }
+    }
+
+    /**
+     * Stop parallel mark because of failure in one of the threads
+     */
+    final void abortMark(Throwable x) { 
+        synchronized (markChunks) { 
+            if (markError == null) { 
+                markError = x;
+            }
+            markDone = true;
+            markChunks.clear();
+            markChunks.notifyAll();
+        }
+    }
+
+    class MarkThread extends Thread { 
+        int[] stack = new int[dbMarkChunkSize*2];
+        int   top;
+
+        void push(int bit) { 
+            if (top == stack.length) { 
+                share(dbMarkChunkSize);
+            }
+            stack[top++] = bit;
+        }
+
+        void share(int n) { 
+            int[] chunk = new int[n];
+            System.arraycopy(stack, 0, chunk, 0, n);
+            System.arraycopy(stack, n, stack, 0, top - n);
+            top -= n;
+            putMarkChunk(chunk);
+        }
+
+        public void run() { 
+            try { 
+                int[] chunk;
+                while ((chunk = takeMarkChunk()) != null) { 
+                    System.arraycopy(chunk, 0, stack, 0, chunk.length);
+                    top = chunk.length;
+                    while (top != 0 && !markDone) { 
+                        markReferences((long)stack[--top] << dbAllocationQuantumBits);
+                        if (nIdleMarkThreads != 0 && top > 1) { 
+                            share(top >>> 1);
                         }
                     }
                 }
-            } while (existsNotMarkedObjects);
-        }    
+            } catch (Throwable x) { 
+                abortMark(x);
+            }
+        }
+
+        MarkThread() { 
+            setName("GC mark");
+            setDaemon(true);
+        }
     }
 
     private int sweep() { 
-        int nDeallocated = 0;
+        startSweep();
+        sweepObjects(0);
+        return finishSweep();
+    }   
+
+    private void startSweep() { 
+        sweepOid = dbFirstUserId;
+        sweepIndexSize = committedIndexSize;
+        nSweepVisited = 0;
+        nSweepDeallocated = 0;
+        sweepReclaimedSize = 0;
+    }
+
+    /**
+     * Deallocate unreachable objects starting from <code>sweepOid</code>
+     * @param deadline time (in milliseconds) at which sweep should be suspended or 0 if all objects 
+     * should be inspected
+     * @return <code>true</code> if all objects are inspected
+     */
+    private boolean sweepObjects(long deadline) { 
         long pos;
         gcDone = true;
-        for (int i = dbFirstUserId, j = committedIndexSize; i < j; i++) {
+        for (int i = sweepOid, j = sweepIndexSize; i < j; i++) {
+            if (deadline != 0 && ((i - sweepOid) & 255) == 255 && System.currentTimeMillis() >= deadline) { 
+                sweepOid = i;
+                return false;
+            }
+            nSweepVisited += 1;
             pos = getGCPos(i);
             if (pos != 0 && ((int)pos & (dbPageObjectFlag|dbFreeHandleFlag)) == 0) {
                 int bit = (int)(pos >>> dbAllocationQuantumBits);
-                if ((blackBitmap[bit >>> 5] & (1 << (bit & 31))) == 0) { 
+                if ((bit >>> 5) < blackBitmap.length && (blackBitmap[bit >>> 5] & (1 << (bit & 31))) == 0) { 
                     // object is not accessible
                     if (getPos(i) != pos) { 
+                        if (sweepActive) { 
+                            // object was changed by the current transaction after mark
+                            continue;
+                        }
                         throw new StorageError(StorageError.INVALID_OID);
                     }
                     int offs = (int)pos & (Page.pageSize-1);
@@ -1684,14 +2391,15 @@ public class StorageImpl implements Storage {
                     int typeOid = ObjectHeader.getType(pg.data, offs);
                     if (typeOid != 0) { 
                         ClassDescriptor desc = findClassDescriptor(typeOid);
-                        nDeallocated += 1;
+                        int size = ObjectHeader.getSize(pg.data, offs);
+                        nSweepDeallocated += 1;
+                        sweepReclaimedSize += size;
                         if (Btree.class.isAssignableFrom(desc.cls)) { 
                             Btree btree = new Btree(pg.data, ObjectHeader.sizeof + offs);
                             pool.unfix(pg);
                             btree.assignOid(this, i, false);
                             btree.deallocate();
                         } else { 
-                            int size = ObjectHeader.getSize(pg.data, offs);
                             pool.unfix(pg);
                             freeId(i);
                             objectCache.remove(i);                        
@@ -1700,21 +2408,58 @@ public class StorageImpl implements Storage {
                         if (listener != null) { 
                             listener.deallocateObject(desc.cls, i);
                         }
+                    } else { 
+                        pool.unfix(pg);
                     }
                 }
             }   
         }
+        sweepOid = sweepIndexSize;
+        return true;
+    }
 
+    private int finishSweep() { 
+        sweepActive = false;
         greyBitmap = null;
         blackBitmap = null;
         allocatedDelta = 0;
         gcActive = false;
 
         if (listener != null) {
-            listener.gcCompleted(nDeallocated);
+            listener.gcProgress(nSweepVisited, nSweepDeallocated, sweepReclaimedSize);
+            listener.gcCompleted(nSweepDeallocated);
         }
-        return nDeallocated;
-    }   
+        return nSweepDeallocated;
+    }
+
+    /**
+     * Perform step of incremental sweep. Storage is locked during the step not longer than 
+     * <code>gcMaxPause</code> milliseconds, so transactions can be committed between steps.
+     * @return <code>true</code> if sweep is not completed
+     */
+    private boolean sweepStep() { 
+        synchronized (backgroundGcMonitor) { 
+            synchronized (this) { 
+                synchronized (objectCache) { 
+                    if (!opened) { 
+                        sweepActive = false;
+                        greyBitmap = null;
+                        blackBitmap = null;
+                        gcActive = false;
+                        return false;
+                    }
+                    if (sweepObjects(System.currentTimeMillis() + gcMaxPause)) { 
+                        finishSweep();
+                        return false;
+                    }
+                    if (listener != null) { 
+                        listener.gcProgress(nSweepVisited, nSweepDeallocated, sweepReclaimedSize);
+                    }
+                    return true;
+                }
+            }
+        }
+    }
      
     class GcThread extends Thread { 
         private boolean go;
@@ -1749,10 +2494,18 @@ public class StorageImpl implements Storage {
                         mark();
                         synchronized (StorageImpl.this) { 
                             synchronized (objectCache) { 
-                                sweep();
+                                if (gcMaxPause == 0) { 
+                                    sweep();
+                                    continue;
+                                }
+                                startSweep();
+                                sweepActive = true;
                             }
                         }                        
                     }
+                    while (sweepStep()) { 
+                        Thread.yield();
+                    }
                 }
             } catch (InterruptedException x) { 
             }    
@@ -1787,19 +2540,338 @@ public class StorageImpl implements Storage {
     }
 
 
+    public boolean compact(long maxMovedSize) { 
+        synchronized (backgroundGcMonitor) { 
+            synchronized (this) { 
+                if (!opened) {
+                    throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+                }
+                objectCache.flush();
+                if (modified) { 
+                    // release space of old versions of modified objects
+                    commit0();
+                    modified = false;
+                }
+                if (compactionWindow < 0) { 
+                    // start new pass: truncate free tail of the file and choose window at its end
+                    compactionEnd = truncateFreeTail();
+                    compactionWindow = getCompactionWindow(compactionEnd, maxMovedSize);
+                    compactionOid = dbBitmapId;
+                    compactionLastOid = 0;
+                    compactionLastPos = 0;
+                }
+                long windowStart = compactionWindow;
+                long movedSize = 0;
+                boolean gcWasDone = gcDone;
+                // objects which are relocated should not be deallocated by GC
+                gcDone = true;
+                currRBitmapPage = currPBitmapPage = 0;
+                currRBitmapOffs = currPBitmapOffs = 0;
+                int oid = compactionOid;
+                int till = currIndexSize - oid > compactionScanLimit ? oid + compactionScanLimit : currIndexSize;
+                for (; oid < till; oid++) { 
+                    long pos = getPos(oid);
+                    if (pos != 0 && (pos & (dbFreeHandleFlag|dbModifiedFlag)) == 0) { 
+                        if ((pos & ~dbFlagsMask) >= windowStart) { 
+                            movedSize += relocateObject(oid, pos, windowStart);
+                        } else if ((pos & ~dbFlagsMask) > compactionLastPos) { 
+                            compactionLastPos = pos & ~dbFlagsMask;
+                            compactionLastOid = oid;
+                        }
+                    }
+                }
+                compactionOid = oid;
+                boolean endOfPass = false;
+                if (oid >= currIndexSize) { 
+                    // end of the pass
+                    if (compactionLastOid != 0) { 
+                        // object preceding the window can overlap with it
+                        long pos = getPos(compactionLastOid);
+                        if ((pos & (dbFreeHandleFlag|dbModifiedFlag)) == 0 
+                            && (pos & ~dbFlagsMask) + getObjectSize(pos) > windowStart) 
+                        { 
+                            movedSize += relocateObject(compactionLastOid, pos, pos & ~dbFlagsMask);
+                        }
+                    }
+                    movedSize += relocateIndex(windowStart);
+                    compactionWindow = -1;
+                    endOfPass = true;
+                }
+                boolean committed = false;
+                if (modified) { 
+                    commit0();
+                    modified = false;
+                    committed = true;
+                }
+                boolean completed = false;
+                if (endOfPass) { 
+                    // space of moved objects is released by commit, so tail of the file can be truncated now:
+                    // pass makes no progress if it failed to decrease the end of used space
+                    long end = truncateFreeTail();
+                    completed = end >= compactionEnd;
+                    if (modified) { 
+                        commit0();
+                        modified = false;
+                        committed = true;
+                    }
+                }
+                if (committed) { 
+                    if (pool.file instanceof ITruncatableFile) { 
+                        ((ITruncatableFile)pool.file).truncate(header.root[currIndex].size);
+                    }
+                } else { 
+                    gcDone = gcWasDone;
+                }
+                return completed;
+            }
+        }
+    }
+
+    /**
+     * Set size of the database to the end of the last allocated object aligned on page boundary
+     * @return new size of the database
+     */
+    private long truncateFreeTail() { 
+        int curr = 1 - currIndex;
+        long end = (getAllocatedSpaceEnd() + Page.pageSize - 1) & ~(Page.pageSize-1);
+        if (end < header.root[curr].size) { 
+            setDirty();
+            header.root[curr].size = end;
+        }
+        return end;
+    }
+
+    /**
+     * Get position of the end of the last allocated object
+     */
+    private long getAllocatedSpaceEnd() { 
+        for (int i = header.root[1-currIndex].bitmapEnd - dbBitmapId; --i >= 0;) { 
+            Page pg = getBitmapPage(i);
+            for (int offs = Page.pageSize; --offs >= 0;) { 
+                int mask = pg.data[offs] & 0xFF;
+                if (mask != 0) { 
+                    pool.unfix(pg);
+                    return (((long)i*Page.pageSize + offs)*8 + 8 - lastHoleSize[mask]) << dbAllocationQuantumBits;
+                }
+            }
+            pool.unfix(pg);
+        }
+        return 0;
+    }
+
+    /**
+     * Get total size of objects allocated before the specified position
+     */
+    private long getAllocatedSize(long end) { 
+        int  lastPage = (int)(((end >>> dbAllocationQuantumBits) - 1) >>> (Page.pageBits + 3));
+        long allocatedSize = 0;
+        for (int pageId = 0; pageId <= lastPage; pageId++) { 
+            Page pg = getBitmapPage(pageId);
+            for (int offs = 0; offs < Page.pageSize; offs++) { 
+                for (int mask = pg.data[offs] & 0xFF; mask != 0; mask &= mask - 1) { 
+                    allocatedSize += dbAllocationQuantum;
+                }
+            }
+            pool.unfix(pg);
+        }
+        return allocatedSize;
+    }
+
+    /**
+     * Locate start of the region at the end of used space containing objects with the specified total size.
+     * Objects from this region are moved by one step of compaction. Region never starts before 
+     * the middle of the free space: objects are moved to the holes located before the region, 
+     * so free space before it should exceed total size of objects in the region with some reserve 
+     * for fragmentation.
+     */
+    private long getCompactionWindow(long end, long maxMovedSize) { 
+        long minStart = ((getAllocatedSize(end) + end) >>> 1) & ~(dbAllocationQuantum-1);
+        long quantNo = (end >>> dbAllocationQuantumBits) - 1;
+        int  pageId = (int)(quantNo >>> (Page.pageBits + 3));
+        int  offs = (int)(quantNo & (pageBits-1)) >> 3;
+        long windowSize = 0;
+        for (; pageId >= 0; pageId--) { 
+            Page pg = getBitmapPage(pageId);
+            for (; offs >= 0; offs--) { 
+                for (int mask = pg.data[offs] & 0xFF; mask != 0; mask &= mask - 1) { 
+                    windowSize += dbAllocationQuantum;
+                }
+                long windowStart = ((long)pageId*Page.pageSize + offs)*8 << dbAllocationQuantumBits;
+                if (windowSize >= maxMovedSize || windowStart <= minStart) { 
+                    pool.unfix(pg);
+                    return windowStart > minStart ? windowStart : minStart;
+                }
+            }
+            pool.unfix(pg);
+            offs = Page.pageSize-1;
+        }
+        return 0;
+    }
+
+    private long getObjectSize(long pos) { 
+        if ((pos & dbPageObjectFlag) != 0) { 
+            return Page.pageSize;
+        }
+        int offs = (int)pos & (Page.pageSize-1);
+        Page pg = pool.getPage(pos - offs);
+        int size = ObjectHeader.getSize(pg.data, offs & ~dbFlagsMask);
+        pool.unfix(pg);
+        return size;
+    }
+
+    /**
+     * Move object to the first hole located before the specified limit.
+     * Object is copied by allocator in the same way as shadow copy of modified page is created,
+     * so old version of the object is deallocated by commit.
+     * @param limit position before which the hole should end: start of the compaction window, 
+     * so that objects are not moved inside the window
+     * @return size of the moved object or 0 if there is no hole of appropriate size before the limit
+     */
+    private long relocateObject(int oid, long pos, long limit) { 
+        long size = (getObjectSize(pos) + dbAllocationQuantum-1) & ~(dbAllocationQuantum-1);
+        long hole = findHole(size, limit);
+        if (hole < 0) { 
+            return 0;
+        }
+        // start allocation from the found hole
+        int pageId = (int)(hole / pageBits);
+        int offs = (int)(hole % pageBits) >> 3;
+        if ((size & (Page.pageSize-1)) == 0) { 
+            currPBitmapPage = pageId;
+            currPBitmapOffs = offs;
+        } else { 
+            currRBitmapPage = pageId;
+            currRBitmapOffs = offs;
+        }
+        allocate(size, oid);
+        cloneBitmap(pos & ~dbFlagsMask, size);
+        return size;
+    }
+
+    /**
+     * Move object index if it overlaps with the compaction window.
+     * Working copy of the index is moved in the same way as when index is extended by <code>allocateId</code>,
+     * its committed copy is reallocated by commit. Holes are needed for both copies, otherwise commit may need 
+     * to extend the file: allocation is restarted from the second hole, so commit places new shadow copy in it.
+     * @return size of the moved index or 0 if index was not moved
+     */
+    private long relocateIndex(long windowStart) { 
+        int  curr = 1 - currIndex;
+        long size = header.root[curr].indexSize*8L;
+        long oldIndex = header.root[curr].index;
+        long pos = oldIndex > header.root[currIndex].index ? oldIndex : header.root[currIndex].index;
+        if (pos + size <= windowStart || oldIndex != header.root[currIndex].shadowIndex) { 
+            return 0;
+        }
+        long limit = pos < windowStart ? pos : windowStart;
+        long hole = findHole(size, limit);
+        if (hole < 0) { 
+            return 0;
+        }
+        currPBitmapPage = (int)(hole / pageBits);
+        currPBitmapOffs = (int)(hole % pageBits) >> 3;
+        long newIndex = allocate(size, 0);
+        long shadowHole = findHole(size, limit);
+        if (shadowHole < 0) { 
+            free(newIndex, size);
+            return 0;
+        }
+        pool.copy(newIndex, oldIndex, currIndexSize*8L);
+        header.root[curr].index = newIndex;
+        free(oldIndex, size);
+        currPBitmapPage = (int)(shadowHole / pageBits);
+        currPBitmapOffs = (int)(shadowHole % pageBits) >> 3;
+        return size;
+    }
+
+    /**
+     * Find the first hole in which object of the specified size can be allocated.
+     * Bitmap pages inspected by this method are registered in free space index in the same way as by allocator.
+     * @param size size of the object aligned on allocation quantum
+     * @param limit position before which object should be placed 
+     * @return number of the first allocation quantum of the hole or -1 if there is no such hole
+     */
+    private long findHole(long size, long limit) { 
+        int  objBitSize = (int)(size >>> dbAllocationQuantumBits);
+        long alignment = (size & (Page.pageSize-1)) == 0 ? Page.pageSize >>> dbAllocationQuantumBits : 1;
+        long limitBit = limit >>> dbAllocationQuantumBits;
+        int  lastPage = (int)((limitBit + pageBits - 1) / pageBits);
+        long holeStart = 0;
+        int  holeBitSize = 0;
+        for (int i = 0; i < lastPage; i++) { 
+            int spaceNeeded = objBitSize - holeBitSize < pageBits 
+                ? objBitSize - holeBitSize : pageBits;
+            if (freeSpaceIndex.get(i) <= spaceNeeded) { 
+                holeBitSize = 0;
+                // skip pages which can not contain the object
+                i = freeSpaceIndex.findFirst(i + 1, lastPage, objBitSize < pageBits ? objBitSize : pageBits) - 1;
+                continue;
+            }
+            Page pg = getBitmapPage(i);
+            long bitNo = (long)i*pageBits;
+            int  maxHoleBitSize = 0; // size of the largest hole inside the page
+            int  pageHoleBitSize = 0; // size of the current hole not including part in previous page
+            int  offs;
+            for (offs = 0; offs < Page.pageSize && bitNo < limitBit; offs++) { 
+                int mask = pg.data[offs] & 0xFF;
+                if (mask == 0xFF) { 
+                    holeBitSize = pageHoleBitSize = 0;
+                    bitNo += 8;
+                    continue;
+                }
+                for (int j = 0; j < 8; j++, bitNo++) { 
+                    if ((mask & (1 << j)) != 0) { 
+                        holeBitSize = pageHoleBitSize = 0;
+                    } else { 
+                        if (holeBitSize++ == 0) { 
+                            holeStart = bitNo;
+                        }
+                        if (++pageHoleBitSize > maxHoleBitSize) { 
+                            maxHoleBitSize = pageHoleBitSize;
+                        }
+                        long start = (holeStart + alignment - 1) & ~(alignment - 1);
+                        if (start + objBitSize == bitNo + 1) { 
+                            pool.unfix(pg);
+                            return start + objBitSize <= limitBit ? start : -1;
+                        }
+                    }
+                }
+            }
+            if (offs == Page.pageSize && holeBitSize == 0) { 
+                // whole page was inspected and it is not ending with hole, 
+                // so size of the largest hole in it is known
+                freeSpaceIndex.set(i, maxHoleBitSize + 1);
+            }
+            pool.unfix(pg);
+        }
+        return -1;
+    }
+
+
+    public HashMap getLockStatistics() { 
+        LockManager manager = lockManager;
+        return manager != null ? manager.getStatistics() : new HashMap();
+    }
+
+    /**
+     * Get lock manager used to track locks of persistent resources
+     * @return lock manager or <code>null</code> if "perst.lock.manager" property is not set
+     */
+    public ILockManager getLockManager() { 
+        return lockManager;
+    }
+
     public synchronized HashMap getMemoryDump() { 
         synchronized (objectCache) { 
             if (!opened) {
                 throw new StorageError(StorageError.STORAGE_NOT_OPENED);
             }
             int bitmapSize = (int)(header.root[currIndex].size >>> (dbAllocationQuantumBits + 5)) + 1;
-            boolean existsNotMarkedObjects;
             long pos;
-            int  i, j, n;
+            int  bit;
 
             // mark
-            greyBitmap = new int[bitmapSize];
-            blackBitmap = new int[bitmapSize];
+            startMark(bitmapSize);
             int rootOid = header.root[currIndex].rootObject;
             HashMap map = new HashMap();
 
@@ -1809,62 +2881,51 @@ public class StorageImpl implements Storage {
                 MemoryUsage classUsage = new MemoryUsage(Class.class);
 
                 markOid(rootOid);
-                do { 
-                    existsNotMarkedObjects = false;
-                    for (i = 0; i < bitmapSize; i++) { 
-                        if (greyBitmap[i] != 0) { 
-                            existsNotMarkedObjects = true;
-                            for (j = 0; j < 32; j++) { 
-                                if ((greyBitmap[i] & (1 << j)) != 0) { 
-                                    pos = (((long)i << 5) + j) << dbAllocationQuantumBits;
-                                    greyBitmap[i] &= ~(1 << j);
-                                    blackBitmap[i] |= 1 << j;
-                                    int offs = (int)pos & (Page.pageSize-1);
-                                    Page pg = pool.getPage(pos - offs);
-                                    int typeOid = ObjectHeader.getType(pg.data, offs);
-                                    int objSize = ObjectHeader.getSize(pg.data, offs);
-                                    int alignedSize = (objSize + dbAllocationQuantum - 1) & ~(dbAllocationQuantum-1);                                    
-                                    if (typeOid != 0) { 
-                                        markOid(typeOid);
-                                        ClassDescriptor desc = findClassDescriptor(typeOid);
-                                        if (Btree.class.isAssignableFrom(desc.cls)) { 
-                                            Btree btree = new Btree(pg.data, ObjectHeader.sizeof + offs);
-                                            btree.assignOid(this, 0, false);
-                                            int nPages = btree.markTree();
-                                            if (FieldIndex.class.isAssignableFrom(desc.cls)) { 
-                                                fieldIndexUsage.nInstances += 1;
-                                                fieldIndexUsage.totalSize += (long)nPages*Page.pageSize + objSize;
-                                                fieldIndexUsage.allocatedSize += (long)nPages*Page.pageSize + alignedSize;
-                                            } else {
-                                                indexUsage.nInstances += 1;
-                                                indexUsage.totalSize += (long)nPages*Page.pageSize + objSize;
-                                                indexUsage.allocatedSize += (long)nPages*Page.pageSize + alignedSize;
-                                            }
-                                        } else { 
-                                            MemoryUsage usage = (MemoryUsage)map.get(desc.cls);
-                                            if (usage == null) { 
-                                                usage = new MemoryUsage(desc.cls);
-                                                map.put(desc.cls, usage);
-                                            }
-                                            usage.nInstances += 1;
-                                            usage.totalSize += objSize;
-                                            usage.allocatedSize += alignedSize;
-                                                      
-                                            if (desc.hasReferences) { 
-                                                markObject(pool.get(pos), ObjectHeader.sizeof, desc);
-                                            }
-                                        }
-                                    } else { 
-                                        classUsage.nInstances += 1;
-                                        classUsage.totalSize += objSize;
-                                        classUsage.allocatedSize += alignedSize;
-                                    }
-                                    pool.unfix(pg);                                
-                                }
+                while ((bit = nextGreyObject()) >= 0) { 
+                    pos = (long)bit << dbAllocationQuantumBits;
+                    int offs = (int)pos & (Page.pageSize-1);
+                    Page pg = pool.getPage(pos - offs);
+                    int typeOid = ObjectHeader.getType(pg.data, offs);
+                    int objSize = ObjectHeader.getSize(pg.data, offs);
+                    int alignedSize = (objSize + dbAllocationQuantum - 1) & ~(dbAllocationQuantum-1);                                    
+                    if (typeOid != 0) { 
+                        markOid(typeOid);
+                        ClassDescriptor desc = findClassDescriptor(typeOid);
+                        if (Btree.class.isAssignableFrom(desc.cls)) { 
+                            Btree btree = new Btree(pg.data, ObjectHeader.sizeof + offs);
+                            btree.assignOid(this, 0, false);
+                            int nPages = btree.markTree();
+                            if (FieldIndex.class.isAssignableFrom(desc.cls)) { 
+                                fieldIndexUsage.nInstances += 1;
+                                fieldIndexUsage.totalSize += (long)nPages*Page.pageSize + objSize;
+                                fieldIndexUsage.allocatedSize += (long)nPages*Page.pageSize + alignedSize;
+                            } else {
+                                indexUsage.nInstances += 1;
+                                indexUsage.totalSize += (long)nPages*Page.pageSize + objSize;
+                                indexUsage.allocatedSize += (long)nPages*Page.pageSize + alignedSize;
+                            }
+                        } else { 
+                            MemoryUsage usage = (MemoryUsage)map.get(desc.cls);
+                            if (usage == null) { 
+                                usage = new MemoryUsage(desc.cls);
+                                map.put(desc.cls, usage);
+                            }
+                            usage.nInstances += 1;
+                            usage.totalSize += objSize;
+                            usage.allocatedSize += alignedSize;
+                                      
+                            if (desc.hasReferences) { 
+                                markObject(unpackRecord(pool.get(pos), desc), ObjectHeader.sizeof, desc);
                             }
                         }
+                    } else { 
+                        classUsage.nInstances += 1;
+                        classUsage.totalSize += objSize;
+                        classUsage.allocatedSize += alignedSize;
                     }
-                } while (existsNotMarkedObjects);
+                    pool.unfix(pg);                                
+                }
+                markStack = null;
                 
                 if (indexUsage.nInstances != 0) { 
                     map.put(Index.class, indexUsage);
@@ -2074,8 +3135,11 @@ public class StorageImpl implements Storage {
 
     static class ThreadTransactionContext { 
         int       nested;
+        boolean   optimistic;
+        boolean   aborted; // optimistic transaction was aborted because of conflict, but not yet ended or rolled back
         ArrayList locked = new ArrayList();
         ArrayList modified = new ArrayList();
+        HashMap   versions = new HashMap(); // OID -> version of object accessed by optimistic transaction
     }
 
     static ThreadTransactionContext getTransactionContext() { 
@@ -2084,11 +3148,27 @@ public class StorageImpl implements Storage {
 
     public void beginThreadTransaction(int mode)
     {
+        ThreadTransactionContext ctx = getTransactionContext();
+        if (ctx.aborted && ctx.nested == 0) { 
+            // conflict detected by the end of the previous transaction was not followed by rollback
+            completeAbortedTransaction(ctx);
+        }
         switch (mode) {
         case SERIALIZABLE_TRANSACTION:
             useSerializableTransactions = true;
-            getTransactionContext().nested += 1;
+            ctx.nested += 1;
+            break;
+        case OPTIMISTIC_TRANSACTION:
+        {
+            if (ctx.nested++ == 0) { 
+                synchronized (this) { 
+                    nOptimisticTransactions += 1;
+                }
+                ctx.optimistic = true;
+            }
+            useSerializableTransactions = true;
             break;
+        }
         case EXCLUSIVE_TRANSACTION:
         case COOPERATIVE_TRANSACTION:
             synchronized (transactionMonitor) {
@@ -2121,7 +3201,15 @@ public class StorageImpl implements Storage {
     public void endThreadTransaction(int maxDelay)
     {
         ThreadTransactionContext ctx = getTransactionContext();
-        if (ctx.nested != 0) { // serializable transaction
+        if (ctx.optimistic) { 
+            if (ctx.aborted) { 
+                if (ctx.nested == 0 || --ctx.nested == 0) { 
+                    completeAbortedTransaction(ctx);
+                }
+            } else if (--ctx.nested == 0) { 
+                endOptimisticTransaction(ctx);
+            }
+        } else if (ctx.nested != 0) { // serializable transaction
             if (--ctx.nested == 0) { 
                 int i = ctx.modified.size();
                 if (i != 0) { 
@@ -2177,10 +3265,206 @@ public class StorageImpl implements Storage {
     }
 
 
+    private void endOptimisticTransaction(ThreadTransactionContext ctx) 
+    {
+        try { 
+            synchronized (backgroundGcMonitor) { 
+                synchronized (this) { 
+                    Iterator iterator = ctx.versions.entrySet().iterator();
+                    while (iterator.hasNext()) { 
+                        Map.Entry e = (Map.Entry)iterator.next();
+                        if (getObjectVersion(((Integer)e.getKey()).intValue()) != ((Long)e.getValue()).longValue()) { 
+                            abortOptimisticTransaction(ctx);
+                        }
+                    }
+                    int i = ctx.modified.size();
+                    if (i != 0) { 
+                        do { 
+                            ((IPersistent)ctx.modified.get(--i)).store();
+                        } while (i != 0);
+                        commit0();
+                    }
+                }
+            }
+        } finally { 
+            if (!ctx.aborted) { 
+                releaseOptimisticTransaction(ctx);
+                ctx.optimistic = false;
+            }
+        }
+    }
+
+    /**
+     * Abort optimistic transaction because of conflict. Transaction remains active (in aborted state)
+     * until it is ended or rolled back by the application, so that these calls do not affect
+     * transactions of other threads.
+     */
+    private void abortOptimisticTransaction(ThreadTransactionContext ctx) 
+    {
+        for (int i = ctx.modified.size(); --i >= 0;) { 
+            ((IPersistent)ctx.modified.get(i)).invalidate();
+        }
+        releaseOptimisticTransaction(ctx);
+        ctx.aborted = true;
+        throw new StorageError(StorageError.TRANSACTION_CONFLICT);
+    }
+
+    /**
+     * Complete aborted optimistic transaction: changes done after the conflict are discarded
+     */
+    private void completeAbortedTransaction(ThreadTransactionContext ctx) 
+    {
+        for (int i = ctx.modified.size(); --i >= 0;) { 
+            ((IPersistent)ctx.modified.get(i)).invalidate();
+        }
+        ctx.modified.clear();
+        releaseLocks(ctx);
+        ctx.aborted = false;
+        ctx.optimistic = false;
+        ctx.nested = 0;
+    }
+
+    private void releaseOptimisticTransaction(ThreadTransactionContext ctx) 
+    {
+        synchronized (this) { 
+            for (int i = ctx.modified.size(); --i >= 0;) { 
+                objectOwners.remove(new Integer(((IPersistent)ctx.modified.get(i)).getOid()));
+            }
+            ctx.modified.clear();
+            ctx.versions.clear();
+            if (--nOptimisticTransactions == 0) { 
+                synchronized (objectVersions) { 
+                    objectVersions.clear();
+                }
+            }
+        }
+        releaseLocks(ctx);
+    }
+
+    private static void releaseLocks(ThreadTransactionContext ctx) 
+    {
+        for (int i = ctx.locked.size(); --i >= 0;) { 
+            ((IResource)ctx.locked.get(i)).reset();
+        }
+        ctx.locked.clear();
+    }
+
+    final long getObjectVersion(int oid) 
+    {
+        synchronized (objectVersions) { 
+            Long version = (Long)objectVersions.get(new Integer(oid));
+            return version == null ? 0 : version.longValue();
+        }
+    }
+
+    /**
+     * Change version of the object, so that optimistic transactions which have accessed 
+     * this object will fail validation
+     */
+    final void updateObjectVersion(int oid) 
+    {
+        if (nOptimisticTransactions != 0) { 
+            synchronized (objectVersions) { 
+                objectVersions.put(new Integer(oid), new Long(++lastObjectVersion));
+            }
+        }
+    }
+
+    /**
+     * Remember version of the object accessed by optimistic transaction of the current thread.
+     * Objects are shared by all threads, so access to the object modified by other active optimistic transaction 
+     * is considered as conflict.
+     */
+    final void recordObjectVersion(IPersistent obj, boolean modified) 
+    {
+        if (useSerializableTransactions && obj != null) { 
+            ThreadTransactionContext ctx = getTransactionContext();
+            if (ctx.optimistic && !ctx.aborted) { 
+                Integer oid = new Integer(obj.getOid());
+                Object owner = objectOwners.get(oid);
+                if ((owner != null && owner != ctx) || (modified && obj.isRaw())) { 
+                    // object is modified by other transaction or was invalidated by aborted transaction
+                    abortOptimisticTransaction(ctx);
+                }
+                if (!ctx.versions.containsKey(oid)) { 
+                    ctx.versions.put(oid, new Long(getObjectVersion(obj.getOid())));
+                    if (!obj.isRaw()) { 
+                        recordReferencedObjects(ctx, obj);
+                    }
+                }
+                if (modified) { 
+                    objectOwners.put(oid, ctx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remember versions of the objects referenced by the object accessed by optimistic transaction.
+     * Loaded objects are reached through references without access to the storage, 
+     * so them are included in the read set together with the referencing object.
+     * Elements of links are recorded when them are fetched from the link.
+     */
+    private void recordReferencedObjects(ThreadTransactionContext ctx, IPersistent obj) 
+    {
+        ArrayList stack = new ArrayList();
+        stack.add(obj);
+        try { 
+            do { 
+                obj = (IPersistent)stack.remove(stack.size()-1);
+                ClassDescriptor desc = (ClassDescriptor)classDescMap.get(obj.getClass());
+                if (desc == null || !desc.hasReferences) { 
+                    continue;
+                }
+                ClassDescriptor.FieldDescriptor[] all = desc.allFields;
+                for (int i = 0; i < all.length; i++) { 
+                    ClassDescriptor.FieldDescriptor fd = all[i];
+                    if (fd.type == ClassDescriptor.tpObject) { 
+                        recordReferencedObject(ctx, fd.field.get(obj), stack);
+                    } else if (fd.type == ClassDescriptor.tpArrayOfObject) { 
+                        Object[] arr = (Object[])fd.field.get(obj);
+                        if (arr != null) { 
+                            for (int j = 0; j < arr.length; j++) { 
+                                recordReferencedObject(ctx, arr[j], stack);
+                            }
+                        }
+                    }
+                }
+            } while (stack.size() != 0);
+        } catch (IllegalAccessException x) { 
+            throw new StorageError(StorageError.ACCESS_VIOLATION, x);
+        }
+    }
+
+    private void recordReferencedObject(ThreadTransactionContext ctx, Object ref, ArrayList stack) 
+    {
+        if (ref instanceof IPersistent) { 
+            IPersistent obj = (IPersistent)ref;
+            int oid = obj.getOid();
+            if (oid != 0 && obj.getStorage() == this) { 
+                Integer key = new Integer(oid);
+                if (!ctx.versions.containsKey(key)) { 
+                    ctx.versions.put(key, new Long(getObjectVersion(oid)));
+                    if (!obj.isRaw()) { 
+                        stack.add(obj);
+                    }
+                }
+            }
+        }
+    }
+
     public void rollbackThreadTransaction()
     {
         ThreadTransactionContext ctx = getTransactionContext();
-        if (ctx.nested != 0) { // serializable transaction
+        if (ctx.optimistic) { 
+            if (!ctx.aborted) { 
+                for (int i = ctx.modified.size(); --i >= 0;) { 
+                    ((IPersistent)ctx.modified.get(i)).invalidate();
+                }
+                releaseOptimisticTransaction(ctx);
+            }
+            completeAbortedTransaction(ctx);
+        } else if (ctx.nested != 0) { // serializable transaction
             ctx.nested = 0; 
             int i = ctx.modified.size();
             if (i != 0) { 
@@ -2220,8 +3504,30 @@ public class StorageImpl implements Storage {
          
     public void close() 
     {
+        CommitThread asyncCommitter;
+        synchronized (this) { 
+            asyncCommitter = commitThread;
+            commitThread = null;
+        }
+        if (asyncCommitter != null) { 
+            asyncCommitter.terminate();
+        }
+        synchronized (this) { 
+            for (int i = snapshots.size(); --i >= 0;) { 
+                ((SnapshotStorageImpl)snapshots.get(i)).opened = false;
+            }
+            snapshots.clear();
+            if (nDeferredFrees != 0) { 
+                modified = true;
+            }
+        }
+        // after failure of asynchronous commit neither current state nor clean header can be written:
+        // database is recovered from the last durable state when it is reopened
+        boolean failed = pool.barrier.getFailure() != null;
         synchronized (backgroundGcMonitor) { 
-            commit();
+            if (!failed) { 
+                commit();
+            }
             opened = false;
         }
         if (gcThread != null) {             
@@ -2230,7 +3536,11 @@ public class StorageImpl implements Storage {
                 gcThread.join();
             } catch (InterruptedException x) {}
         }
-        if (isDirty()) { 
+        if (warmup != null) { 
+            warmup.stop();
+            warmup = null;
+        }
+        if (isDirty() && !failed) { 
             Page pg = pool.putPage(0);
             header.pack(pg.data);
             pool.flush();
@@ -2240,12 +3550,15 @@ public class StorageImpl implements Storage {
             pool.unfix(pg);
             pool.flush();
         }
+        if (warmupFile != null) { 
+            saveResidentPages();
+        }
         pool.close();
         // make GC easier
         pool = null;
         objectCache = null;
         classDescMap = null;
-        bitmapPageAvailableSpace = null;
+        freeSpaceIndex = null;
         dirtyPagesMap  = null;
         descList = null;
     }
@@ -2286,6 +3599,12 @@ public class StorageImpl implements Storage {
         throw new StorageError(StorageError.BAD_PROPERTY_VALUE);
     }
 
+    private void checkPageSize(Object value) { 
+        if (Page.specifiedPageBits < 0 || Page.getPageBits(getIntegerValue(value)) != Page.pageBits) { 
+            throw new StorageError(StorageError.BAD_PROPERTY_VALUE);
+        }
+    }
+
     private long getIntegerValue(Object value) { 
         if (value instanceof Number) { 
             return ((Number)value).longValue();
@@ -2328,12 +3647,69 @@ public class StorageImpl implements Storage {
         if ((value = props.getProperty("perst.file.noflush")) != null) { 
             noFlush = getBooleanValue(value);
         }
+        if ((value = props.getProperty("perst.file.mmap")) != null) { 
+            mappedFile = getBooleanValue(value);
+        }
+        if ((value = props.getProperty("perst.file.positional.io")) != null) { 
+            positionalIO = getBooleanValue(value);
+        }
+        if ((value = props.getProperty("perst.file.wal")) != null) { 
+            writeAheadLog = getBooleanValue(value);
+        }
+        if ((value = props.getProperty("perst.page.pool.partitions")) != null) { 
+            pagePoolPartitions = (int)getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.page.pool.replacement")) != null) { 
+            pageReplacementPolicy = value;
+        }
+        if ((value = props.getProperty("perst.page.size")) != null) { 
+            checkPageSize(value);
+        }
+        if ((value = props.getProperty("perst.page.pool.offheap.size")) != null) { 
+            offHeapPagePoolSize = getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.page.pool.warmup.file")) != null) { 
+            warmupFile = value;
+        }
+        if ((value = props.getProperty("perst.page.pool.warmup.background")) != null) { 
+            warmupInBackground = getBooleanValue(value);
+        }
         if ((value = props.getProperty("perst.alternative.btree")) != null) { 
             alternativeBtree = getBooleanValue(value);
         }
         if ((value = props.getProperty("perst.background.gc")) != null) { 
             backgroundGc = getBooleanValue(value);
         }
+        if ((value = props.getProperty("perst.group.commit")) != null) { 
+            groupCommit = getBooleanValue(value);
+        }
+        if ((value = props.getProperty("perst.group.commit.delay")) != null) { 
+            groupCommitDelay = getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.background.writer.high.watermark")) != null) { 
+            writerHighWatermark = (int)getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.background.writer.low.watermark")) != null) { 
+            writerLowWatermark = (int)getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.lock.manager")) != null) { 
+            useLockManager = getBooleanValue(value);
+        }
+        if ((value = props.getProperty("perst.gc.threads")) != null) { 
+            gcThreads = (int)getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.gc.max.pause")) != null) { 
+            gcMaxPause = getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.compaction.scan.limit")) != null) { 
+            compactionScanLimit = (int)getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.generate.serializers")) != null) { 
+            generateSerializers = getBooleanValue(value);
+        }
+        if ((value = props.getProperty("perst.compact.records")) != null) { 
+            useCompactRecords = getBooleanValue(value);
+        }
         if ((value = props.getProperty("perst.string.encoding")) != null) { 
             encoding = value;
         }
@@ -2365,10 +3741,48 @@ public class StorageImpl implements Storage {
             readOnly = getBooleanValue(value);
         } else if (name.equals("perst.file.noflush")) { 
             noFlush = getBooleanValue(value);
+        } else if (name.equals("perst.file.mmap")) { 
+            mappedFile = getBooleanValue(value);
+        } else if (name.equals("perst.file.positional.io")) { 
+            positionalIO = getBooleanValue(value);
+        } else if (name.equals("perst.file.wal")) { 
+            writeAheadLog = getBooleanValue(value);
+        } else if (name.equals("perst.page.pool.partitions")) { 
+            pagePoolPartitions = (int)getIntegerValue(value);
+        } else if (name.equals("perst.page.pool.replacement")) { 
+            pageReplacementPolicy = (String)value;
+        } else if (name.equals("perst.page.size")) { 
+            checkPageSize(value);
+        } else if (name.equals("perst.page.pool.offheap.size")) { 
+            offHeapPagePoolSize = getIntegerValue(value);
+        } else if (name.equals("perst.page.pool.warmup.file")) { 
+            warmupFile = (value == null) ? null : value.toString();
+        } else if (name.equals("perst.page.pool.warmup.background")) { 
+            warmupInBackground = getBooleanValue(value);
         } else if (name.equals("perst.alternative.btree")) { 
             alternativeBtree = getBooleanValue(value);
         } else if (name.equals("perst.background.gc")) {
             backgroundGc = getBooleanValue(value);
+        } else if (name.equals("perst.group.commit")) { 
+            groupCommit = getBooleanValue(value);
+        } else if (name.equals("perst.group.commit.delay")) { 
+            groupCommitDelay = getIntegerValue(value);
+        } else if (name.equals("perst.background.writer.high.watermark")) { 
+            writerHighWatermark = (int)getIntegerValue(value);
+        } else if (name.equals("perst.background.writer.low.watermark")) { 
+            writerLowWatermark = (int)getIntegerValue(value);
+        } else if (name.equals("perst.lock.manager")) { 
+            useLockManager = getBooleanValue(value);
+        } else if (name.equals("perst.gc.threads")) { 
+            gcThreads = (int)getIntegerValue(value);
+        } else if (name.equals("perst.gc.max.pause")) { 
+            gcMaxPause = getIntegerValue(value);
+        } else if (name.equals("perst.compaction.scan.limit")) { 
+            compactionScanLimit = (int)getIntegerValue(value);
+        } else if (name.equals("perst.generate.serializers")) { 
+            generateSerializers = getBooleanValue(value);
+        } else if (name.equals("perst.compact.records")) { 
+            useCompactRecords = getBooleanValue(value);
         } else if (name.equals("perst.string.encoding")) { 
             encoding = (value == null) ? null : value.toString();
         } else if (name.equals("perst.lock.file")) { 
@@ -2389,19 +3803,127 @@ public class StorageImpl implements Storage {
 
     public synchronized IPersistent getObjectByOID(int oid)
     {
-        return oid == 0 ? null : lookupObject(oid, null);
+        if (oid == 0) { 
+            return null;
+        }
+        return lookupObject(oid, null);
+    }
+
+    public synchronized void prefetch(IPersistent[] objects)
+    {
+        if (!opened) { 
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+        final long[] positions = new long[objects.length];
+        final IPersistent[] stubs = new IPersistent[objects.length];
+        int n = 0;
+        for (int i = 0; i < objects.length; i++) { 
+            IPersistent obj = objects[i];
+            if (obj instanceof PersistentStub) { 
+                IPersistent cached = objectCache.get(obj.getOid());
+                if (cached != null && !cached.isRaw()) { 
+                    continue;
+                }
+            }
+            if (obj != null && obj.isRaw() && obj.getOid() != 0) { 
+                long pos = getPos(obj.getOid());
+                if (pos != 0 && (pos & (dbFreeHandleFlag|dbPageObjectFlag)) == 0) { 
+                    positions[n] = pos & ~dbFlagsMask;
+                    stubs[n] = obj;
+                    n += 1;
+                }
+            }
+        }
+        final int nObjects = n;
+        GenericSort.sort(new GenericSortArray() { 
+                public int size() { 
+                    return nObjects;
+                }
+                public int compare(int i, int j) { 
+                    return positions[i] < positions[j] ? -1 : positions[i] == positions[j] ? 0 : 1;
+                }
+                public void swap(int i, int j) { 
+                    long t1 = positions[i];
+                    positions[i] = positions[j];
+                    positions[j] = t1;
+                    IPersistent t2 = stubs[i];
+                    stubs[i] = stubs[j];
+                    stubs[j] = t2;
+                }
+            }
+        );
+        // pages of the batch should not be thrown away from the pool before objects are unpacked
+        int maxPages = pool.autoExtended ? nObjects : (pool.poolSize + 1) / 2;
+        long[] pages = new long[nObjects < maxPages ? nObjects : maxPages];
+        int i = 0;
+        while (i < nObjects) { 
+            int nPages = 0;
+            int j = i;
+            while (j < nObjects) { 
+                long page = positions[j] & ~(Page.pageSize-1);
+                if (nPages == 0 || pages[nPages-1] != page) { 
+                    if (nPages == maxPages) { 
+                        break;
+                    }
+                    pages[nPages++] = page;
+                }
+                j += 1;
+            }
+            new PagePrefetcher(pool, pages, nPages, PagePrefetcher.DEFAULT_THREADS).join();
+            while (i < j) { 
+                IPersistent obj = stubs[i];
+                if (obj instanceof PersistentStub) { 
+                    lookupObject(obj.getOid(), null);
+                } else { 
+                    loadObject(obj);
+                }
+                stubs[i++] = null;
+            }
+        }
+    }
+
+    public void prefetch(Link link)
+    {
+        IPersistent[] objects = new IPersistent[link.size()];
+        for (int i = 0; i < objects.length; i++) { 
+            objects[i] = link.getRaw(i);
+        }
+        prefetch(objects);
     }
 
-    public/*protected*/ synchronized void modifyObject(IPersistent obj) {
-        synchronized(objectCache) { 
-            if (!obj.isModified()) { 
-                if (useSerializableTransactions) { 
-                    ThreadTransactionContext ctx = getTransactionContext();
-                    if (ctx.nested != 0) { // serializable transaction
-                        ctx.modified.add(obj);
+    public/*protected*/ void modifyObject(IPersistent obj) {
+        if (obj.isModified() && nOptimisticTransactions == 0) { 
+            return;
+        }
+        synchronized (this) { 
+            synchronized(objectCache) { 
+                if (!obj.isModified()) { 
+                    if (useSerializableTransactions) { 
+                        ThreadTransactionContext ctx = getTransactionContext();
+                        if (ctx.nested != 0) { // serializable or optimistic transaction
+                            recordObjectVersion(obj, true);
+                            ctx.modified.add(obj);
+                        }
                     }
+                    objectCache.setDirty(obj.getOid());
+                } else if (nOptimisticTransactions != 0) { 
+                    recordObjectModification(obj);
                 }
-                objectCache.setDirty(obj.getOid());
+            }
+        }
+    }
+
+    /**
+     * Objects are shared by all threads, so modification of the object which is already modified 
+     * by other active optimistic transaction is considered as conflict.
+     */
+    private void recordObjectModification(IPersistent obj) 
+    {
+        ThreadTransactionContext ctx = getTransactionContext();
+        if (ctx.optimistic && !ctx.aborted) { 
+            Object owner = objectOwners.get(new Integer(obj.getOid()));
+            if (owner != null && owner != ctx) { 
+                abortOptimisticTransaction(ctx);
             }
         }
     }
@@ -2464,7 +3986,20 @@ public class StorageImpl implements Storage {
         } else if (obj.isModified()) {
             objectCache.clearDirty(oid);
         }
-        byte[] data = packObject(obj);
+        if (!newObject) { 
+            updateObjectVersion(oid);
+        }
+        PackBuffers buffers = (PackBuffers)packBuffers.get();
+        ByteBuffer buf = buffers.acquire();
+        try { 
+            storeRecord(oid, newObject, packObject(obj, buf, buffers.compactBuffer));
+        } finally { 
+            buffers.release(buf);
+        }
+    }
+
+    private final void storeRecord(int oid, boolean newObject, byte[] data) 
+    {
         long pos;
         int newSize = ObjectHeader.getSize(data, 0);
         if (newObject || (pos = getPos(oid)) == 0) { 
@@ -2504,13 +4039,63 @@ public class StorageImpl implements Storage {
     public/*protected*/ synchronized void loadObject(IPersistent obj) {
         if (obj.isRaw()) { 
             loadStub(obj.getOid(), obj, obj.getClass());
+            recordObjectVersion(obj, false);
+        }
+    }
+
+    public/*protected*/ synchronized void loadField(ILazyPersistent obj, String name) {
+        LazyRecord lazy = (LazyRecord)obj.getPendingFields();
+        if (lazy != null) { 
+            try { 
+                for (int i = 0; i < lazy.offsets.length; i++) { 
+                    int offs = lazy.offsets[i];
+                    if (offs >= 0 && (name == null || name.equals(lazy.fields[i].fieldName))) { 
+                        lazy.offsets[i] = -1;
+                        lazy.nPending -= 1;
+                        unpackFields(obj, lazy.fields, i, i+1, lazy.recursiveLoading, lazy.body, offs, obj);
+                    }
+                }
+            } catch (Exception x) { 
+                throw new StorageError(StorageError.ACCESS_VIOLATION, x);
+            }
+            if (lazy.nPending == 0) { 
+                obj.setPendingFields(null);
+            }
+        }
+    }
+
+    /**
+     * Unpack fields of the object which were not unpacked yet before packing the object.
+     * Fields to which application has assigned non-null values are left unchanged.
+     */
+    private final void loadPendingFields(ILazyPersistent obj) throws Exception {
+        LazyRecord lazy = (LazyRecord)obj.getPendingFields();
+        for (int i = 0; i < lazy.offsets.length; i++) { 
+            int offs = lazy.offsets[i];
+            if (offs >= 0 && lazy.fields[i].field.get(obj) == null) { 
+                unpackFields(obj, lazy.fields, i, i+1, lazy.recursiveLoading, lazy.body, offs, obj);
+            }
         }
+        obj.setPendingFields(null);
     }
 
     final IPersistent lookupObject(int oid, Class cls) {
+        IPersistent obj = findObject(oid, cls);
+        recordObjectVersion(obj, false);
+        return obj;
+    }
+
+    private final IPersistent findObject(int oid, Class cls) {
         IPersistent obj = objectCache.get(oid);
         if (obj == null || obj.isRaw()) { 
-            obj = loadStub(oid, obj, cls);
+            // object is loaded under storage lock (as by loadObject), so concurrent modification 
+            // of the object can not be started before its fields are unpacked 
+            synchronized (this) { 
+                obj = objectCache.get(oid);
+                if (obj == null || obj.isRaw()) { 
+                    obj = loadStub(oid, obj, cls);
+                }
+            }
         }
         return obj;
     }
@@ -2527,7 +4112,7 @@ public class StorageImpl implements Storage {
     }
         
     final ClassDescriptor findClassDescriptor(int oid) { 
-        return (ClassDescriptor)lookupObject(oid, ClassDescriptor.class);
+        return (ClassDescriptor)findObject(oid, ClassDescriptor.class);
     }
 
     protected IPersistent unswizzle(int oid, Class cls, boolean recursiveLoading) { 
@@ -2539,6 +4124,7 @@ public class StorageImpl implements Storage {
         }
         IPersistent stub = objectCache.get(oid);
         if (stub != null) { 
+            recordObjectVersion(stub, false);
             return stub;
         }
         ClassDescriptor desc;
@@ -2576,6 +4162,7 @@ public class StorageImpl implements Storage {
         } else { 
             desc = findClassDescriptor(typeOid);
         }
+        body = unpackRecord(body, desc);
         if (obj == null) { 
             obj = (IPersistent)desc.newInstance();
             objectCache.put(oid, obj);
@@ -2584,11 +4171,22 @@ public class StorageImpl implements Storage {
         if (obj instanceof FastSerializable) { 
             ((FastSerializable)obj).unpack(body, ObjectHeader.sizeof, encoding);
         } else { 
+            LazyRecord lazy = null;
+            if (obj instanceof ILazyPersistent) { 
+                lazy = new LazyRecord(body, desc.allFields, obj.recursiveLoading());
+                ((ILazyPersistent)obj).setPendingFields(lazy);
+            }
             try { 
                 unpackObject(obj, desc, obj.recursiveLoading(), body, ObjectHeader.sizeof, obj);
             } catch (Exception x) { 
                 throw new StorageError(StorageError.ACCESS_VIOLATION, x);
             }
+            if (lazy != null) { 
+                lazy.unpacking = false;
+                if (lazy.nPending == 0) { 
+                    ((ILazyPersistent)obj).setPendingFields(null);
+                }
+            }
         }
         obj.onLoad();
         return obj;
@@ -2614,15 +4212,65 @@ public class StorageImpl implements Storage {
     final int unpackObject(Object obj, ClassDescriptor desc, boolean recursiveLoading, byte[] body, int offs, IPersistent po) 
       throws Exception
     {
-        ClassDescriptor.FieldDescriptor[] all = desc.allFields;
+        if (obj != null) { 
+            ClassSerializer serializer = getSerializer(desc);
+            if (serializer != null) { 
+                return serializer.unpack(this, obj, recursiveLoading, body, offs, po);
+            }
+        }
+        return unpackFields(obj, desc.allFields, 0, desc.allFields.length, recursiveLoading, body, offs, po);
+    }
+
+    /**
+     * Get serializer generated for the class
+     * @return generated serializer or <code>null</code> if object should be serialized using reflection
+     */
+    final ClassSerializer getSerializer(ClassDescriptor desc) { 
+        if (!desc.serializerGenerated) { 
+            if (generateSerializers) { 
+                try { 
+                    desc.serializer = SerializerGenerator.generate(desc);
+                } catch (Throwable x) { 
+                    // object of this class will be serialized using reflection
+                    if (listener != null) { 
+                        listener.serializerGenerationFailed(desc.cls, x);
+                    } else { 
+                        System.err.println("Failed to generate serializer for class " + desc.name + ": " + x);
+                    }
+                }
+            }
+            desc.serializerGenerated = true;
+        }
+        return desc.serializer;
+    }
+
+    final int unpackFields(Object obj, ClassDescriptor.FieldDescriptor[] all, int from, int till, 
+                           boolean recursiveLoading, byte[] body, int offs, IPersistent po) 
+      throws Exception
+    {
         ReflectionProvider provider = ClassDescriptor.getReflectionProvider();
         int len;
+        LazyRecord lazy = null;
+        if (obj == po && po instanceof ILazyPersistent) { 
+            lazy = (LazyRecord)((ILazyPersistent)po).getPendingFields();
+            if (lazy != null && !lazy.unpacking) { 
+                lazy = null;
+            }
+        }
 
-        for (int i = 0, n = all.length; i < n; i++) { 
+        for (int i = from; i < till; i++) { 
             ClassDescriptor.FieldDescriptor fd = all[i];
             Field f = fd.field;
 
-            if (f == null || obj == null) { 
+            if (lazy != null && f != null && fd.type >= ClassDescriptor.tpValue 
+                && ILazyPersistent.class.isAssignableFrom(f.getDeclaringClass())) 
+            { 
+                // fields inherited from classes which are not unpacked on demand are unpacked immediately, 
+                // because access to them is not preceded by loadField
+                lazy.defer(i, offs);
+                provider.set(f, obj, null);
+                offs = unpackFields(null, all, i, i+1, recursiveLoading, body, offs, po);
+            } else if (f == null || obj == null) { 
                 switch (fd.type) { 
                 case ClassDescriptor.tpBoolean:
                 case ClassDescriptor.tpByte:
@@ -3140,7 +4788,17 @@ public class StorageImpl implements Storage {
 
 
     final byte[] packObject(IPersistent obj) { 
-        ByteBuffer buf = new ByteBuffer();
+        return packObject(obj, new ByteBuffer(), new ByteBuffer());
+    }
+
+    /**
+     * Pack object using the specified buffers
+     * @param obj packed object
+     * @param buf buffer for the record of the object
+     * @param compactBuf buffer for the record converted to compact format
+     * @return record in the format used by the storage, array can be longer than the record
+     */
+    final byte[] packObject(IPersistent obj, ByteBuffer buf, ByteBuffer compactBuf) { 
         int offs = ObjectHeader.sizeof;
         buf.extend(offs);
         ClassDescriptor desc = getClassDescriptor(obj.getClass());
@@ -3148,6 +4806,9 @@ public class StorageImpl implements Storage {
             offs = ((FastSerializable)obj).pack(buf, offs, encoding);
         } else { 
             try {
+                if (obj instanceof ILazyPersistent && ((ILazyPersistent)obj).getPendingFields() != null) { 
+                    loadPendingFields((ILazyPersistent)obj);
+                }
                 offs = packObject(obj, desc, offs, buf, obj);
             } catch (Exception x) { 
                 throw new StorageError(StorageError.ACCESS_VIOLATION, x);
@@ -3155,7 +4816,7 @@ public class StorageImpl implements Storage {
         }
         ObjectHeader.setSize(buf.arr, 0, offs);
         ObjectHeader.setType(buf.arr, 0, desc.getOid());
-        return buf.arr;        
+        return packRecord(buf.arr, desc, compactBuf);
     }
 
     final int packValue(Object value, int offs, ByteBuffer buf) throws Exception {
@@ -3235,8 +4896,17 @@ public class StorageImpl implements Storage {
 
     final int packObject(Object obj, ClassDescriptor desc, int offs, ByteBuffer buf, IPersistent po) throws Exception 
     { 
-        ClassDescriptor.FieldDescriptor[] flds = desc.allFields;
-        for (int i = 0, n = flds.length; i < n; i++) {
+        ClassSerializer serializer = getSerializer(desc);
+        if (serializer != null) { 
+            return serializer.pack(this, obj, offs, buf, po);
+        }
+        return packFields(obj, desc.allFields, 0, desc.allFields.length, offs, buf, po);
+    }
+
+    final int packFields(Object obj, ClassDescriptor.FieldDescriptor[] flds, int from, int till, int offs, ByteBuffer buf, IPersistent po) 
+        throws Exception 
+    { 
+        for (int i = from; i < till; i++) {
             ClassDescriptor.FieldDescriptor fd = flds[i];
             Field f = fd.field;
             switch(fd.type) {
@@ -3603,8 +5273,26 @@ public class StorageImpl implements Storage {
     private boolean lockFile = false;
     private boolean readOnly = false;
     private boolean noFlush = false;
+    private boolean mappedFile = false;
+    private boolean positionalIO = false;
+    private boolean writeAheadLog = false;
+    private int     pagePoolPartitions = 1;
+    private String  pageReplacementPolicy = "lru";
+    private long    offHeapPagePoolSize = 0;
+    private String  warmupFile = null;
+    private boolean warmupInBackground = false;
     private boolean alternativeBtree = false;
     private boolean backgroundGc = false;
+    private boolean groupCommit = false;
+    private long    groupCommitDelay = 0;
+    private int     writerHighWatermark = 0;
+    private int     writerLowWatermark = 0;
+    private boolean useLockManager = false;
+    private int     gcThreads = 1;
+    private long    gcMaxPause = 0;
+    private int     compactionScanLimit = 100000;
+    private boolean generateSerializers = true;
+    private boolean useCompactRecords = false;
     
     boolean replicationAck = false;
 
@@ -3629,11 +5317,30 @@ public class StorageImpl implements Storage {
     int       currIndex;  // copy of header.root, used to allow read access to the database 
                           // during transaction commit
     long      usedSize;   // total size of allocated objects since the beginning of the session
-    int[]     bitmapPageAvailableSpace;
+    FreeSpaceIndex freeSpaceIndex; // upper bounds of free space in bitmap pages
     boolean   opened;
+    boolean   singleFlushCommit; // commit flushes data pages and header at once
+    boolean   compactRecords; // records of objects are stored in compact format
 
     int[]     greyBitmap; // bitmap of visited during GC but not yet marked object
     int[]     blackBitmap;    // bitmap of objects marked during GC 
+    int[]     markStack;      // stack of grey objects which references are not yet marked
+    int       markStackTop;
+    int       greyScanStart;  // first word of grey bitmap which can contain objects not present in mark stack
+    ArrayList markChunks;     // portions of mark stacks shared by parallel mark threads
+    Object[]  markLocks;      // locks of GC bitmap words used by parallel mark threads
+    int[]     markDescOids;   // sorted OIDs of class descriptors used by parallel mark threads
+    ClassDescriptor[] markDescs; // class descriptors correspondent to markDescOids
+    int       nMarkThreads;
+    volatile int nIdleMarkThreads;
+    volatile boolean markDone;
+    Throwable markError;
+    boolean   sweepActive;    // incremental sweep is in progress
+    int       sweepOid;       // next object to be inspected by sweep
+    int       sweepIndexSize; // committed index size at the beginning of sweep
+    int       nSweepVisited;
+    int       nSweepDeallocated;
+    long      sweepReclaimedSize;
     long      gcThreshold;
     long      allocatedDelta;
     boolean   gcDone;
@@ -3641,6 +5348,7 @@ public class StorageImpl implements Storage {
     Object    backgroundGcMonitor;
     Object    backgroundGcStartMonitor;
     GcThread  gcThread;
+    PagePrefetcher warmup;
 
     ClassLoader loader;
 
@@ -3650,8 +5358,32 @@ public class StorageImpl implements Storage {
     int       nBlockedTransactions;
     int       nCommittedTransactions;
     long      scheduledCommitTime;
+
+    Object    groupCommitMonitor = new Object();
+    boolean   groupCommitInProgress;
+    long      nCommitRequests;
+    long      nCompletedCommitRequests;
+    CommitThread commitThread;
+
+    ArrayList snapshots;
+    long[]    deferredFrees; // position, size and generation of the object versions which can be accessed by snapshots
+    int       nDeferredFrees;
+    long      commitGeneration;
+
+    long      compactionWindow; // start of the window of the current compaction pass or -1 if there is no active pass
+    int       compactionOid;    // next object identifier to be inspected by compaction pass
+    int       compactionLastOid;// object with the largest position preceding the window
+    long      compactionLastPos;
+    long      compactionEnd;    // end of used space at the start of the current pass
     Object    transactionMonitor;
     PersistentResource transactionLock;
+    LockManager lockManager;
+
+    final ThreadLocal packBuffers = new ThreadLocal() {
+         protected Object initialValue() {
+             return new PackBuffers();
+         }
+    };
 
     static final ThreadLocal transactionContext = new ThreadLocal() {
          protected synchronized Object initialValue() {
@@ -3660,6 +5392,11 @@ public class StorageImpl implements Storage {
     };
     boolean useSerializableTransactions;
 
+    int       nOptimisticTransactions;
+    HashMap   objectVersions = new HashMap(); // OID -> version of object changed while there are active optimistic transactions
+    HashMap   objectOwners = new HashMap();   // OID -> context of optimistic transaction which has modified the object
+    long      lastObjectVersion;
+
 
     OidHashTable     objectCache;
     HashMap          classDescMap;
@@ -3689,8 +5426,11 @@ class Header {
     boolean  initialized; // database is initilaized
 
     RootPage root[];
+
+    int      pageBits; // log2 of database page size (0 for databases created with default 4Kb pages)
+    boolean  compactRecords; // records of objects are stored in compact format
     
-    final static int sizeof = 3 + RootPage.sizeof*2;
+    final static int sizeof = 3 + RootPage.sizeof*2 + 2;
     
     final void pack(byte[] rec) { 
         int offs = 0;
@@ -3723,6 +5463,8 @@ class Header {
             Bytes.pack4(rec, offs, root[i].bitmapExtent);
             offs += 4;
         }
+        rec[offs++] = (byte)pageBits;
+        rec[offs++] = (byte)(compactRecords ? 1 : 0);
     }
     
     final void unpack(byte[] rec) { 
@@ -3758,6 +5500,8 @@ class Header {
             root[i].bitmapExtent = Bytes.unpack4(rec, offs);
             offs += 4;
         }
+        pageBits = rec[offs++];
+        compactRecords = rec[offs++] != 0;
     }   
 }
 
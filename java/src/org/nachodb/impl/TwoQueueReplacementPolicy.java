@@ -0,0 +1,158 @@
+package org.nachodb.impl;
+
+/**
+ * Scan resistant 2Q page replacement policy.
+ * Pages loaded in the pool are placed in FIFO queue A1in, and only pages which are
+ * requested again after being evicted from A1in are promoted to the main LRU queue Am.
+ * Addresses of pages evicted from A1in are remembered in the ghost queue A1out.
+ * So pages accessed once by sequential scan (for example iteration through large index or 
+ * garbage collection) are not able to push out frequently used pages from the pool.
+ */
+class TwoQueueReplacementPolicy implements PageReplacementPolicy { 
+    LRU     in = new LRU(); 
+    LRU     am = new LRU();
+    int     nIn;
+    int     maxIn;
+    long[]  out;
+    int     outPos;
+    long[]  outKeys;      // open addressing hash table: address of the page in A1out -> position in out
+    int[]   outPositions;
+    int     outMask;
+
+    static final long EMPTY = -1;
+
+    static final int IN_QUEUE   = 1;
+    static final int MAIN_QUEUE = 2;
+
+    /**
+     * Size of A1in queue relative to the pool size
+     */
+    static final int IN_QUEUE_RATIO = 4;
+
+    /**
+     * Size of A1out ghost queue relative to the pool size
+     */
+    static final int OUT_QUEUE_RATIO = 2;
+
+    TwoQueueReplacementPolicy(int poolSize) { 
+        maxIn = poolSize / IN_QUEUE_RATIO;
+        if (maxIn == 0) { 
+            maxIn = 1;
+        }
+        int maxOut = poolSize / OUT_QUEUE_RATIO;
+        out = new long[maxOut == 0 ? 1 : maxOut];
+        java.util.Arrays.fill(out, EMPTY);
+        int tableSize = 2;
+        while (tableSize < out.length*2) { 
+            tableSize <<= 1;
+        }
+        outKeys = new long[tableSize];
+        java.util.Arrays.fill(outKeys, EMPTY);
+        outPositions = new int[tableSize];
+        outMask = tableSize - 1;
+    }
+
+    public void load(Page pg) { 
+        int h = findOut(pg.offs);
+        if (h >= 0) { 
+            removeOut(h);
+            am.link(pg);
+            pg.policyState = MAIN_QUEUE;
+        } else { 
+            in.link(pg);
+            pg.policyState = IN_QUEUE;
+            nIn += 1;
+        }
+    }
+
+    public void fix(Page pg) { 
+        if (pg.policyState == MAIN_QUEUE) { 
+            pg.unlink();
+            am.link(pg);
+        }
+    }
+
+    public void unfix(Page pg) {}
+
+    public Page evict() { 
+        Page pg;
+        if (nIn > maxIn && (pg = findUnused(in)) != null) { 
+            return evictFromInQueue(pg);
+        }
+        if ((pg = findUnused(am)) != null) { 
+            pg.unlink();
+            return pg;
+        }
+        if ((pg = findUnused(in)) != null) { 
+            return evictFromInQueue(pg);
+        }
+        return null;
+    }
+
+    private Page evictFromInQueue(Page pg) { 
+        pg.unlink();
+        nIn -= 1;
+        if (out[outPos] != EMPTY) { 
+            int h = findOut(out[outPos]);
+            if (h >= 0 && outPositions[h] == outPos) { 
+                removeOut(h);
+            }
+        }
+        out[outPos] = pg.offs;
+        putOut(pg.offs, outPos);
+        if (++outPos == out.length) { 
+            outPos = 0;
+        }
+        return pg;
+    }
+
+    private static int hash(long addr) { 
+        int h = (int)(addr >>> Page.pageBits) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int findOut(long addr) { 
+        long key;
+        for (int h = hash(addr) & outMask; (key = outKeys[h]) != EMPTY; h = (h + 1) & outMask) { 
+            if (key == addr) { 
+                return h;
+            }
+        }
+        return -1;
+    }
+
+    private void putOut(long addr, int pos) { 
+        int h = hash(addr) & outMask;
+        while (outKeys[h] != EMPTY && outKeys[h] != addr) { 
+            h = (h + 1) & outMask;
+        }
+        outKeys[h] = addr;
+        outPositions[h] = pos;
+    }
+
+    /**
+     * Remove entry from the hash table shifting back following entries of the collision chain
+     */
+    private void removeOut(int h) { 
+        outKeys[h] = EMPTY;
+        for (int i = (h + 1) & outMask; outKeys[i] != EMPTY; i = (i + 1) & outMask) { 
+            int home = hash(outKeys[i]) & outMask;
+            if (h <= i ? (home <= h || home > i) : (home <= h && home > i)) { 
+                outKeys[h] = outKeys[i];
+                outPositions[h] = outPositions[i];
+                outKeys[i] = EMPTY;
+                h = i;
+            }
+        }
+    }
+
+    private static Page findUnused(LRU list) { 
+        for (LRU node = list.prev; node != list; node = node.prev) { 
+            Page pg = (Page)node;
+            if (pg.accessCount == 0 && (pg.state & Page.psPinned) == 0) { 
+                return pg;
+            }
+        }
+        return null;
+    }
+}
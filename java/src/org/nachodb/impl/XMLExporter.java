@@ -45,7 +45,7 @@ public class XMLExporter {
                             } else { 
                                 String className = exportIdentifier(desc.name);
                                 writer.write(" <" + className + " id=\"" + oid + "\">\n");
-                                exportObject(desc, obj, ObjectHeader.sizeof, 2);
+                                exportObject(desc, storage.unpackRecord(obj, desc), ObjectHeader.sizeof, 2);
                                 writer.write(" </" + className + ">\n");
                             }
                             nExportedObjects += 1;
@@ -515,10 +515,12 @@ public class XMLImporter {
 
         ObjectHeader.setSize(buf.arr, 0, offs);
         ObjectHeader.setType(buf.arr, 0, desc.getOid());
+        byte[] data = storage.packRecord(buf.arr, desc);
+        int size = ObjectHeader.getSize(data, 0);
 
-        long pos = storage.allocate(offs, 0);
+        long pos = storage.allocate(size, 0);
         storage.setPos(oid, pos | StorageImpl.dbModifiedFlag);
-        storage.pool.put(pos, buf.arr, offs);
+        storage.pool.put(pos, data, size);
     }
 
     final int getHexValue(char ch) throws XMLImportException
@@ -25,10 +25,32 @@ import javassist.expr.*;
  * }
  * </pre>
  * In this example all classes from <code>com.mycompany.mypackage</code> except 
- * MyApp will be loaded by JAssist class loader and automatically made persistent capable.
+ * MyApp will be loaded by JAssist class loader and automatically made persistent capable.<P>
+ * Classes matching lazy class name patterns are derived from <code>LazyPersistent</code>
+ * (or implement <code>ILazyPersistent</code> if they are derived from other persistent capable class), 
+ * so their fields of array, link, value and raw types are unpacked on demand.
+ * Access to such fields is prepended by invocation of <code>loadField</code> method.
  */
 public class PerstTranslator implements Translator { 
     protected boolean isPersistent(String className) { 
+        return matchPatterns(className, classNamePatterns);
+    }
+
+    protected boolean isLazy(String className) { 
+        return lazyClassNamePatterns != null && matchPatterns(className, lazyClassNamePatterns);
+    }
+
+    private boolean isLazy(CtClass cc) throws NotFoundException { 
+        while (cc != null && cc != object) { 
+            if (cc.subtypeOf(lazyInterface) || (isLazy(cc.getName()) && isPersistent(cc.getName()))) { 
+                return true;
+            }
+            cc = cc.getSuperclass();
+        }
+        return false;
+    }
+
+    private static boolean matchPatterns(String className, String[] classNamePatterns) { 
         for (int i = 0; i < classNamePatterns.length; i++) { 
             String pattern = classNamePatterns[i];
             if (className.equals(pattern) 
@@ -60,9 +82,23 @@ public class PerstTranslator implements Translator {
         this.classNamePatterns = classNamePatterns;
     }
 
+    /**
+     * Create Perst translator with specified lists of persistent and lazy class name patterns.
+     * Classes which fully qualified name matchs one of the lazy class name patterns are made persistent 
+     * capable with fields unpacked on demand.
+     */
+    public PerstTranslator(String[] classNamePatterns, String[] lazyClassNamePatterns) { 
+        this.classNamePatterns = classNamePatterns;
+        this.lazyClassNamePatterns = lazyClassNamePatterns;
+    }
+
     public void start(ClassPool pool) throws NotFoundException { 
         persistent = pool.get("org.nachodb.Persistent");
         persistentInterface = pool.get("org.nachodb.IPersistent");
+        lazyPersistent = pool.get("org.nachodb.LazyPersistent");
+        lazyInterface = pool.get("org.nachodb.ILazyPersistent");
+        string = pool.get("java.lang.String");
+        date = pool.get("java.util.Date");
         factory = pool.get("org.nachodb.impl.LoadFactory");
         object = pool.get("java.lang.Object");
         isRecursive = persistent.getDeclaredMethod("recursiveLoading"); 
@@ -203,9 +239,21 @@ public class PerstTranslator implements Translator {
                 m.instrument(new ExprEditor() { 
                     public void edit(FieldAccess fa) throws CannotCompileException { 
                         try { 
-                            if ((fa.getField().getModifiers() & (Modifier.TRANSIENT|Modifier.STATIC)) == 0
-                                && fa.getField().getDeclaringClass().subtypeOf(persistentInterface))
-                            {
+                            CtField f = fa.getField();
+                            CtClass owner = f.getDeclaringClass();
+                            if ((f.getModifiers() & (Modifier.TRANSIENT|Modifier.STATIC)) != 0) { 
+                                return;
+                            }
+                            if (isUnpackedOnDemand(f) && isLazy(owner)) { 
+                                // declaring class (or its lazy base class) may be not translated yet
+                                String target = "((org.nachodb.ILazyPersistent)(Object)$0)";
+                                if (fa.isWriter()) { 
+                                    fa.replace("{ ((org.nachodb.IPersistent)(Object)$0).loadAndModify(); " 
+                                               + target + ".loadField(\"" + f.getName() + "\"); $proceed($$); }");
+                                } else { 
+                                    fa.replace("{ " + target + ".loadField(\"" + f.getName() + "\"); $_ = $proceed($$); }");
+                                }
+                            } else if (owner.subtypeOf(persistentInterface)) { 
                                 if (fa.isWriter()) { 
                                     fa.replace("{ $0.loadAndModify(); $proceed($$); }");
                                 }
@@ -239,6 +287,23 @@ public class PerstTranslator implements Translator {
     }
 
 
+    private void addLazyMethods(CtClass cc) throws CannotCompileException 
+    { 
+        cc.addInterface(lazyInterface);
+        cc.addField(CtField.make("private transient Object pendingFields$;", cc));
+        cc.addMethod(CtNewMethod.make("public void loadField(String name) { load(); if (pendingFields$ != null) { getStorage().loadField(this, name); } }", cc));
+        cc.addMethod(CtNewMethod.make("public void loadFields() { load(); if (pendingFields$ != null) { getStorage().loadField(this, (String)null); } }", cc));
+        cc.addMethod(CtNewMethod.make("public Object getPendingFields() { return pendingFields$; }", cc));
+        cc.addMethod(CtNewMethod.make("public void setPendingFields(Object fields) { pendingFields$ = fields; }", cc));
+    }
+
+    private boolean isUnpackedOnDemand(CtField f) throws NotFoundException 
+    { 
+        CtClass type = f.getType();
+        return type.isArray() 
+            || !(type.isPrimitive() || type == string || type == date || type.subtypeOf(persistentInterface));
+    }
+
     public void onLoad(ClassPool pool, String className)
         throws NotFoundException, CannotCompileException
     {
@@ -252,6 +317,15 @@ public class PerstTranslator implements Translator {
         try {
             if (isPersistent(className)) {                
                 CtClass base = cc.getSuperclass();
+                boolean addLazyMethods = false;
+                if (isLazy(className)) { 
+                    if (base == persistent || base == object) { 
+                        cc.setSuperclass(lazyPersistent);
+                        base = lazyPersistent;
+                    } else { 
+                        addLazyMethods = !isLazy(base);
+                    }
+                }
                 CtConstructor cons = new CtConstructor(constructorParams, cc);            
                 if (base.subclassOf(persistent) || base == object) { 
                     cons.setBody(null);
@@ -268,7 +342,11 @@ public class PerstTranslator implements Translator {
                     cc.addConstructor(cons);
                 }
                 preprocessMethods(cc, true, true);
-                if (base == persistent || base == object) { 
+                if (addLazyMethods) { 
+                    // methods used by storage during object loading should not call load()
+                    addLazyMethods(cc);
+                }
+                if (base == persistent || base == object || base == lazyPersistent) { 
                     CtMethod m = new CtMethod(isRecursive, cc, null);
                     m.setBody("return false;");
                     cc.addMethod(m);
@@ -294,12 +372,17 @@ public class PerstTranslator implements Translator {
 
     CtClass       persistent;
     CtClass       persistentInterface;
+    CtClass       lazyPersistent;
+    CtClass       lazyInterface;
+    CtClass       string;
+    CtClass       date;
     CtClass       object;
     CtClass       factory;
     CtClass[]     constructorParams;
     CtMethod      create;
     CtMethod      isRecursive;
     String[]      classNamePatterns;
+    String[]      lazyClassNamePatterns;
     CtClass       serializable;
     CtMethod      pack;
     CtMethod      unpack;
@@ -0,0 +1,2 @@
+java -classpath .;..\lib\perst.jar TestCompact
+java -classpath .;..\lib\perst.jar TestCompact records
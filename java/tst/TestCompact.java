@@ -0,0 +1,84 @@
+import org.garret.perst.*;
+
+import java.io.File;
+
+public class TestCompact { 
+    static class Record extends Persistent { 
+        int    key;
+        byte[] body;
+    }
+
+    final static int nRecords = 100000;
+    final static int maxMovedSize = 1024*1024;
+    final static int nRemoved = nRecords*3/4;
+    final static int maxSteps = 10000;
+
+    static void verify(Index root) { 
+        Assert.that(root.size() == nRecords - nRemoved);
+        for (int i = 0; i < nRecords; i++) { 
+            Record rec = (Record)root.get(new Key(i));
+            if (i >= nRemoved) { 
+                Assert.that(rec != null && rec.key == i && rec.body.length == i % 100 + 10 && rec.body[0] == (byte)i);
+            } else { 
+                Assert.that(rec == null);
+            }
+        }
+    }
+
+    static public void main(String[] args) { 
+        Storage db = StorageFactory.getInstance().createStorage();
+        for (int i = 0; i < args.length; i++) { 
+            if ("records".equals(args[i])) { 
+                db.setProperty("perst.compact.records", Boolean.TRUE);
+            } else { 
+                System.err.println("Unrecognized option: " + args[i]);
+            }
+        }
+        File file = new File("testcompact.dbs");
+        file.delete();
+        db.open("testcompact.dbs");
+        Index root = db.createIndex(int.class, true);
+        db.setRoot(root);
+        for (int i = 0; i < nRecords; i++) { 
+            Record rec = new Record();
+            rec.key = i;
+            rec.body = new byte[i % 100 + 10];
+            rec.body[0] = (byte)i;
+            root.put(new Key(i), rec);
+        }
+        db.commit();
+        // remove records created first, so there is free space at the beginning of the file
+        for (int i = 0; i < nRemoved; i++) { 
+            Record rec = (Record)root.get(new Key(i));
+            root.remove(new Key(i), rec);
+            rec.deallocate();
+        }
+        db.commit();
+        long sizeBefore = file.length();
+
+        long start = System.currentTimeMillis();
+        int nSteps = 0;
+        while (!db.compact(maxMovedSize)) { 
+            Assert.that(++nSteps < maxSteps);
+        }
+        long sizeAfter = file.length();
+        System.out.println("Elapsed time for " + nSteps + " steps of compaction: " 
+                           + (System.currentTimeMillis() - start) + " milliseconds, size of database " 
+                           + sizeBefore + " -> " + sizeAfter);
+        Assert.that(sizeAfter < sizeBefore*3/4);
+        verify(root);
+        db.close();
+
+        db.open("testcompact.dbs");
+        root = (Index)db.getRoot();
+        verify(root);
+        // compaction of the compacted database completes without moving its tail
+        nSteps = 0;
+        while (!db.compact(maxMovedSize)) { 
+            Assert.that(++nSteps < maxSteps);
+        }
+        Assert.that(file.length() <= sizeAfter);
+        verify(root);
+        db.close();
+    }
+}
@@ -0,0 +1,161 @@
+import org.garret.perst.*;
+
+import java.util.*;
+
+public class TestOptimistic extends Thread {
+    static class Counter extends Persistent {
+        int value;
+    }
+
+    static class Root extends Persistent {
+        Counter first;
+        Link    counters;
+    }
+
+    final static int nCounters = 10;
+    final static int nThreads = 4;
+    final static int nIterations = 1000;
+
+    static int nConflicts;
+
+    Storage db;
+    int     id;
+
+    TestOptimistic(Storage db, int id) {
+        this.db = db;
+        this.id = id;
+    }
+
+    static boolean isConflict(StorageError x) {
+        return x.getErrorCode() == StorageError.TRANSACTION_CONFLICT;
+    }
+
+    /**
+     * Increment counter in optimistic transaction. Object should be marked as modified before
+     * it is changed: conflict with other transaction can be detected at this moment and then
+     * changes of the aborted transaction are discarded. Object modified by the aborted transaction
+     * is invalidated, so it is loaded again.
+     */
+    static void increment(Counter counter) {
+        counter.loadAndModify();
+        counter.value += 1;
+    }
+
+    public void run() {
+        Random rnd = new Random(id);
+        for (int i = 0; i < nIterations; i++) { 
+            int n = rnd.nextInt(nCounters);
+            while (true) { 
+                db.beginThreadTransaction(Storage.OPTIMISTIC_TRANSACTION);
+                try { 
+                    Root root = (Root)db.getRoot();
+                    increment((Counter)root.counters.get(n));
+                    db.endThreadTransaction();
+                    break;
+                } catch (StorageError x) { 
+                    if (!isConflict(x)) { 
+                        throw x;
+                    }
+                    db.rollbackThreadTransaction();
+                    synchronized (TestOptimistic.class) { 
+                        nConflicts += 1;
+                    }
+                    // let the owner of the object complete its transaction
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    static void runInOtherThread(Thread t) throws InterruptedException {
+        t.start();
+        t.join();
+    }
+
+    static public void main(String[] args) throws Exception {
+        final Storage db = StorageFactory.getInstance().createStorage();
+        new java.io.File("testopt.dbs").delete();
+        db.open("testopt.dbs");
+        final Root root = new Root();
+        root.first = new Counter();
+        root.counters = db.createLink();
+        for (int i = 0; i < nCounters; i++) { 
+            root.counters.add(new Counter());
+        }
+        db.setRoot(root);
+        db.commit();
+
+        // Counter is reached through reference from the loaded root and then updated by other thread:
+        // update of the counter by this transaction is based on the stale value, so it is aborted
+        db.beginThreadTransaction(Storage.OPTIMISTIC_TRANSACTION);
+        int value = ((Root)db.getRoot()).first.value;
+        runInOtherThread(new Thread() {
+            public void run() {
+                db.beginThreadTransaction(Storage.OPTIMISTIC_TRANSACTION);
+                increment(((Root)db.getRoot()).first);
+                db.endThreadTransaction();
+            }
+        });
+        root.first.modify();
+        root.first.value = value + 1;
+        try { 
+            db.endThreadTransaction();
+            Assert.failed("conflict is not detected");
+        } catch (StorageError x) { 
+            Assert.that(isConflict(x));
+            // rollback of aborted transaction should not affect changes committed by other transactions
+            db.rollbackThreadTransaction();
+        }
+        root.first.load();
+        Assert.that(root.first.value == 1);
+        db.beginThreadTransaction(Storage.OPTIMISTIC_TRANSACTION);
+        increment(((Root)db.getRoot()).first);
+        db.endThreadTransaction();
+        Assert.that(root.first.value == 2);
+
+        // Access to the object modified by other active transaction is a conflict.
+        // Aborted transaction should be ended by the application, this should not affect other transactions.
+        db.beginThreadTransaction(Storage.OPTIMISTIC_TRANSACTION);
+        increment(((Root)db.getRoot()).first);
+        final int oid = root.first.getOid();
+        runInOtherThread(new Thread() {
+            public void run() {
+                db.beginThreadTransaction(Storage.OPTIMISTIC_TRANSACTION);
+                try { 
+                    db.getObjectByOID(oid);
+                    Assert.failed("conflict is not detected");
+                } catch (StorageError x) { 
+                    Assert.that(isConflict(x));
+                } finally { 
+                    db.endThreadTransaction();
+                }
+            }
+        });
+        db.endThreadTransaction();
+        Assert.that(root.first.value == 3);
+
+        long start = System.currentTimeMillis();
+        TestOptimistic[] threads = new TestOptimistic[nThreads];
+        for (int i = 0; i < nThreads; i++) { 
+            threads[i] = new TestOptimistic(db, i);
+            threads[i].start();
+        }
+        for (int i = 0; i < nThreads; i++) { 
+            threads[i].join();
+        }
+        System.out.println("Elapsed time for " + nThreads*nIterations + " optimistic transactions: "
+                           + (System.currentTimeMillis() - start) + " milliseconds, "
+                           + nConflicts + " conflicts");
+        db.close();
+
+        db.open("testopt.dbs");
+        Root r = (Root)db.getRoot();
+        Assert.that(r.first.value == 3);
+        int sum = 0;
+        for (int i = 0; i < nCounters; i++) { 
+            sum += ((Counter)r.counters.get(i)).value;
+        }
+        Assert.that(sum == nThreads*nIterations);
+        db.close();
+    }
+}
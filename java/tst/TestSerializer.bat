@@ -0,0 +1 @@
+java -classpath .;..\lib\perst.jar TestSerializer
@@ -0,0 +1,149 @@
+import org.garret.perst.*;
+
+import java.util.*;
+
+public class TestSerializer {
+    static class Base extends Persistent {
+        int    baseInt;
+        String baseStr;
+    }
+
+    static class Record extends Base {
+        boolean b;
+        byte    by;
+        char    ch;
+        short   sh;
+        int     i;
+        long    l;
+        float   f;
+        double  d;
+        String  str;
+        Date    date;
+        int[]   arr;
+        Record  next;
+    }
+
+    static class Root extends Persistent {
+        Link records;
+    }
+
+    final static int nRecords = 10000;
+    final static int pagePoolSize = 32*1024*1024;
+
+    static void fill(Record rec, int i) {
+        long key = (3141592621L*i + 2718281829L) % 1000000007L;
+        rec.baseInt = i;
+        rec.baseStr = "base" + i;
+        rec.b = (i & 1) != 0;
+        rec.by = (byte)key;
+        rec.ch = (char)key;
+        rec.sh = (short)key;
+        rec.i = (int)key * 31;
+        rec.l = key << 32 | key;
+        rec.f = (float)key / 7;
+        rec.d = (double)key / 3;
+        switch (i) { 
+          case 0:
+            rec.by = Byte.MIN_VALUE;
+            rec.ch = Character.MAX_VALUE;
+            rec.sh = Short.MIN_VALUE;
+            rec.i = Integer.MIN_VALUE;
+            rec.l = Long.MIN_VALUE;
+            rec.f = Float.NaN;
+            rec.d = Double.NEGATIVE_INFINITY;
+            break;
+          case 1:
+            rec.by = Byte.MAX_VALUE;
+            rec.sh = Short.MAX_VALUE;
+            rec.i = Integer.MAX_VALUE;
+            rec.l = Long.MAX_VALUE;
+            rec.f = Float.MIN_VALUE;
+            rec.d = Double.MAX_VALUE;
+        }
+        rec.str = Long.toString(key);
+        rec.date = new Date(key*1000);
+        rec.arr = new int[]{i, (int)key};
+    }
+
+    static void compare(Record r1, Record r2) {
+        Assert.that(r1.baseInt == r2.baseInt);
+        Assert.that(r1.baseStr.equals(r2.baseStr));
+        Assert.that(r1.b == r2.b);
+        Assert.that(r1.by == r2.by);
+        Assert.that(r1.ch == r2.ch);
+        Assert.that(r1.sh == r2.sh);
+        Assert.that(r1.i == r2.i);
+        Assert.that(r1.l == r2.l);
+        Assert.that(Float.floatToIntBits(r1.f) == Float.floatToIntBits(r2.f));
+        Assert.that(Double.doubleToLongBits(r1.d) == Double.doubleToLongBits(r2.d));
+        Assert.that(r1.str.equals(r2.str));
+        Assert.that(r1.date.equals(r2.date));
+        Assert.that(r1.arr.length == r2.arr.length && r1.arr[0] == r2.arr[0] && r1.arr[1] == r2.arr[1]);
+        Assert.that((r1.next == null) == (r2.next == null));
+        Assert.that(r1.next == null || r1.next.baseInt == r2.next.baseInt);
+    }
+
+    static Storage open(String path, boolean generateSerializers) {
+        Storage db = StorageFactory.getInstance().createStorage();
+        db.setProperty("perst.generate.serializers", new Boolean(generateSerializers));
+        db.setListener(new StorageListener() {
+            public void serializerGenerationFailed(Class cls, Throwable reason) {
+                throw new Error("Failed to generate serializer for " + cls + ": " + reason);
+            }
+        });
+        db.open(path, pagePoolSize);
+        return db;
+    }
+
+    static void create(String path, boolean generateSerializers) {
+        Storage db = open(path, generateSerializers);
+        Root root = new Root();
+        root.records = db.createLink();
+        db.setRoot(root);
+        Record first = null;
+        for (int i = 0; i < nRecords; i++) { 
+            Record rec = new Record();
+            fill(rec, i);
+            rec.next = first;
+            root.records.add(rec);
+            if (first == null) { 
+                first = rec;
+            }
+        }
+        db.commit();
+        db.close();
+    }
+
+    static public void main(String[] args) throws Exception {
+        new java.io.File("testser1.dbs").delete();
+        new java.io.File("testser2.dbs").delete();
+        long start = System.currentTimeMillis();
+        create("testser1.dbs", true);
+        create("testser2.dbs", false);
+        System.out.println("Elapsed time for storing " + nRecords + " records with and without generated serializers: "
+                           + (System.currentTimeMillis() - start) + " milliseconds");
+
+        // each database is read both with the same and with the other serialization method
+        for (int pass = 0; pass < 2; pass++) { 
+            start = System.currentTimeMillis();
+            Storage db1 = open("testser1.dbs", pass == 0);
+            Storage db2 = open("testser2.dbs", pass != 0);
+            Link records1 = ((Root)db1.getRoot()).records;
+            Link records2 = ((Root)db2.getRoot()).records;
+            Assert.that(records1.size() == nRecords && records2.size() == nRecords);
+            Record expected = new Record();
+            for (int i = 0; i < nRecords; i++) { 
+                Record rec1 = (Record)records1.get(i);
+                Record rec2 = (Record)records2.get(i);
+                fill(expected, i);
+                expected.next = i == 0 ? null : (Record)records1.get(0);
+                compare(rec1, expected);
+                compare(rec1, rec2);
+            }
+            System.out.println("Elapsed time for comparing " + nRecords + " records: "
+                               + (System.currentTimeMillis() - start) + " milliseconds");
+            db1.close();
+            db2.close();
+        }
+    }
+}
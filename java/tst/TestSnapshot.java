@@ -0,0 +1,104 @@
+import org.garret.perst.*;
+
+import java.util.Iterator;
+
+public class TestSnapshot { 
+    static class Record extends Persistent { 
+        int    key;
+        int    generation;
+        String value;
+    }
+
+    final static int nRecords = 10000;
+    final static int nGenerations = 10;
+
+    static void verify(Index root, int generation) { 
+        Assert.that(root.size() == nRecords);
+        Iterator iterator = root.iterator();
+        int key = 0;
+        while (iterator.hasNext()) { 
+            Record rec = (Record)iterator.next();
+            Assert.that(rec.key == key && rec.generation == generation
+                        && rec.value.equals(Integer.toString(key) + "." + generation));
+            key += 1;
+        }
+        Assert.that(key == nRecords);
+    }
+
+    /**
+     * Replace all records with records of the new generation
+     */
+    static void update(Storage db, Index root, int generation) { 
+        for (int i = 0; i < nRecords; i++) { 
+            Record rec = (Record)root.remove(new Key(i));
+            rec.deallocate();
+            rec = new Record();
+            rec.key = i;
+            rec.generation = generation;
+            rec.value = Integer.toString(i) + "." + generation;
+            root.put(new Key(i), rec);
+        }
+        db.commit();
+    }
+
+    static public void main(String[] args) { 
+        Storage db = StorageFactory.getInstance().createStorage();
+        new java.io.File("testsnapshot.dbs").delete();
+        db.open("testsnapshot.dbs");
+        Index root = db.createIndex(int.class, true);
+        db.setRoot(root);
+        for (int i = 0; i < nRecords; i++) { 
+            Record rec = new Record();
+            rec.key = i;
+            rec.value = Integer.toString(i) + ".0";
+            root.put(new Key(i), rec);
+        }
+        db.commit();
+        long usedBefore = db.getUsedSize();
+
+        long start = System.currentTimeMillis();
+        Storage snapshot = db.createSnapshot();
+        Index snapshotRoot = (Index)snapshot.getRoot();
+        int generation;
+        for (generation = 1; generation <= nGenerations; generation++) { 
+            update(db, root, generation);
+            verify(root, generation);
+            // snapshot still sees the state of the database at the moment of its creation
+            verify(snapshotRoot, 0);
+        }
+        try { 
+            ((Record)snapshotRoot.get(new Key(0))).modify();
+            Assert.failed("snapshot is modified");
+        } catch (StorageError x) { 
+            Assert.that(x.getErrorCode() == StorageError.READ_ONLY_SNAPSHOT);
+        }
+        // space of old versions of records is not reused while snapshot refers to them
+        long usedWithSnapshot = db.getUsedSize();
+        Assert.that(usedWithSnapshot > usedBefore*nGenerations/4);
+        snapshot.close();
+        System.out.println("Elapsed time for " + nGenerations + " updates of database with open snapshot: "
+                           + (System.currentTimeMillis() - start) + " milliseconds, used size "
+                           + usedBefore + " -> " + usedWithSnapshot);
+
+        // after closing the snapshot old versions are deallocated by the next commit
+        update(db, root, generation);
+        verify(root, generation);
+        Assert.that(db.getUsedSize() < usedBefore*2);
+        for (int i = 0; i < nGenerations; i++) { 
+            update(db, root, ++generation);
+        }
+        // and their space is reused, so the database doesn't grow any more
+        long size = db.getDatabaseSize();
+        for (int i = 0; i < nGenerations; i++) { 
+            update(db, root, ++generation);
+        }
+        Assert.that(db.getDatabaseSize() == size);
+        verify(root, generation);
+        db.close();
+
+        db.open("testsnapshot.dbs");
+        root = (Index)db.getRoot();
+        verify(root, generation);
+        db.close();
+    }
+}
@@ -0,0 +1,2 @@
+java -classpath .;..\lib\perst.jar TestWal crash
+java -classpath .;..\lib\perst.jar TestWal recover
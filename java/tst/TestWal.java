@@ -0,0 +1,91 @@
+import org.garret.perst.*;
+
+import java.io.*;
+
+public class TestWal {
+    static class Record extends Persistent {
+        long   key;
+        String value;
+    }
+
+    final static int nTransactions = 1000;
+    final static int transSize = 100;
+    final static int pagePoolSize = 1024*1024;
+
+    private static void usage() {
+        System.err.println("Usage: java TestWal (crash|recover)");
+    }
+
+    static Storage open() {
+        Storage db = StorageFactory.getInstance().createStorage();
+        db.setProperty("perst.file.wal", Boolean.TRUE);
+        db.open("testwal.dbs", pagePoolSize);
+        return db;
+    }
+
+    static public void main(String[] args) {
+        if (args.length < 1) { 
+            usage();
+            return;
+        }
+        if (args[0].equals("crash")) { 
+            new File("testwal.dbs").delete();
+            new File("testwal.dbs.wal").delete();
+            Storage db = open();
+            Index root = db.createIndex(long.class, true);
+            db.setRoot(root);
+            long start = System.currentTimeMillis();
+            int i;
+            for (i = 0; i < nTransactions*transSize; i++) { 
+                Record rec = new Record();
+                rec.key = i;
+                rec.value = Long.toString(i);
+                root.put(new Key(rec.key), rec);
+                if (i % transSize == transSize-1) { 
+                    db.commit();
+                }
+            }
+            System.out.println("Elapsed time for " + nTransactions + " transactions: "
+                               + (System.currentTimeMillis() - start) + " milliseconds");
+            // this transaction is not committed: some of its pages can be written to the log
+            // because page pool is small, but they should be discarded by recovery
+            for (; i < (nTransactions+10)*transSize; i++) { 
+                Record rec = new Record();
+                rec.key = i;
+                rec.value = Long.toString(i);
+                root.put(new Key(rec.key), rec);
+            }
+            System.out.println("Database file size " + new File("testwal.dbs").length()
+                               + ", log size " + new File("testwal.dbs.wal").length());
+            // terminate process without closing the storage, so no checkpoint is performed
+            Runtime.getRuntime().halt(0);
+        } else if (args[0].equals("recover")) { 
+            long start = System.currentTimeMillis();
+            Storage db = open();
+            System.out.println("Elapsed time for recovery: " + (System.currentTimeMillis() - start) + " milliseconds");
+            Index root = (Index)db.getRoot();
+            Assert.that(root.size() == nTransactions*transSize);
+            for (int i = 0; i < nTransactions*transSize; i++) { 
+                Record rec = (Record)root.get(new Key((long)i));
+                Assert.that(rec != null && rec.key == i && rec.value.equals(Long.toString(i)));
+            }
+            Assert.that(root.get(new Key((long)nTransactions*transSize)) == null);
+            Record rec = new Record();
+            rec.key = -1;
+            rec.value = "-1";
+            root.put(new Key(rec.key), rec);
+            db.commit();
+            db.close();
+            Assert.that(new File("testwal.dbs.wal").length() == 0);
+
+            db = open();
+            root = (Index)db.getRoot();
+            Assert.that(root.size() == nTransactions*transSize + 1);
+            Assert.that(((Record)root.get(new Key(-1L))).value.equals("-1"));
+            db.close();
+            System.out.println("Recovered " + nTransactions + " committed transactions");
+        } else { 
+            usage();
+        }
+    }
+}
@@ -27,6 +27,9 @@ del *.dbs
 call TestGC altbtree background
 del *.dbs
 call TestConcur
+call TestOptimistic
+call TestCompact
+call TestSnapshot
 call TestXML
 call TestBackup
 call TestBlob
@@ -35,5 +38,8 @@ call TestTimeSeries
 call TestBit
 call TestThickIndex
 call TestSet
+call TestSerializer
+del *.dbs
+call TestWal
 start TestReplic master
 call TestReplic slave